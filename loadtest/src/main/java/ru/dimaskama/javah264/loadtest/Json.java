@@ -0,0 +1,61 @@
+package ru.dimaskama.javah264.loadtest;
+
+import java.util.Locale;
+
+/// Minimal single-line JSON object writer for the reports
+class Json {
+
+    private final StringBuilder builder = new StringBuilder("{");
+
+    Json put(String name, String value) {
+        key(name);
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+        return this;
+    }
+
+    Json put(String name, long value) {
+        key(name);
+        builder.append(value);
+        return this;
+    }
+
+    Json put(String name, double value) {
+        key(name);
+        if (Double.isFinite(value)) {
+            builder.append(String.format(Locale.ROOT, "%.3f", value));
+        } else {
+            builder.append("null");
+        }
+        return this;
+    }
+
+    Json put(String name, Json value) {
+        key(name);
+        builder.append(value);
+        return this;
+    }
+
+    private void key(String name) {
+        if (builder.length() > 1) {
+            builder.append(',');
+        }
+        builder.append('"').append(name).append("\":");
+    }
+
+    @Override
+    public String toString() {
+        return builder + "}";
+    }
+
+}
@@ -0,0 +1,101 @@
+package ru.dimaskama.javah264.loadtest;
+
+import java.util.Arrays;
+
+/// Log-linear histogram of microsecond values with a relative error below 2%.
+/// Recording is allocation-free
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long max;
+    private double sum;
+
+    synchronized void recordNanos(long nanos) {
+        record(Math.max(0L, nanos / 1000L));
+    }
+
+    synchronized void record(long micros) {
+        counts[index(micros)]++;
+        totalCount++;
+        sum += micros;
+        if (micros > max) {
+            max = micros;
+        }
+    }
+
+    synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += other.counts[i];
+            }
+            totalCount += other.totalCount;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+    }
+
+    /// Adds the values to the target and resets this histogram, without losing concurrently recorded values
+    synchronized void moveTo(LatencyHistogram target) {
+        target.add(this);
+        reset();
+    }
+
+    synchronized void reset() {
+        Arrays.fill(counts, 0L);
+        totalCount = 0L;
+        sum = 0.0;
+        max = 0L;
+    }
+
+    synchronized long getTotalCount() {
+        return totalCount;
+    }
+
+    synchronized long getMax() {
+        return max;
+    }
+
+    synchronized double getMean() {
+        return totalCount != 0L ? sum / totalCount : 0.0;
+    }
+
+    /// Upper bound of the bucket containing the percentile, in microseconds
+    synchronized long getPercentile(double percentile) {
+        if (totalCount == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // Highest value that falls into the bucket
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1L;
+    }
+
+}
@@ -0,0 +1,234 @@
+package ru.dimaskama.javah264.loadtest;
+
+import ru.dimaskama.javah264.NativeMemory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/// Runs N concurrent synthetic streams through H264Encoder -> H264Decoder and reports
+/// frame latency percentiles, throughput, GC pauses, RSS and native memory over time.
+///
+/// Reports are written as JSON Lines: one `interval` object per reporting interval and a final `summary`.
+/// Exits with code 1 if any stream failed
+public final class LoadTest {
+
+    private final LoadTestOptions options;
+    private final ProcessMetrics metrics = new ProcessMetrics();
+    private final List<SyntheticStream> streams = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final LatencyHistogram totalEncodeTime = new LatencyHistogram();
+    private final LatencyHistogram totalDecodeTime = new LatencyHistogram();
+    private final LatencyHistogram totalGcPauses = new LatencyHistogram();
+
+    private LoadTest(LoadTestOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (new LoadTest(options).run() != 0) {
+            System.exit(1);
+        }
+    }
+
+    // Returns the number of failed streams
+    private int run() throws Exception {
+        for (int i = 0; i < options.streams; i++) {
+            SyntheticStream stream = new SyntheticStream(options, i);
+            streams.add(stream);
+            Thread thread = new Thread(stream, "javah264-stream-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+
+        try (BufferedWriter report = Files.newBufferedWriter(options.report, StandardCharsets.UTF_8)) {
+            System.out.printf(Locale.ROOT, "Running %d streams of %dx%d@%d (%s complexity, %d threads) for %ds after %ds warmup%n",
+                    options.streams, options.width, options.height, options.fps, options.complexity, options.threads,
+                    options.durationSeconds, options.warmupSeconds);
+            TimeUnit.SECONDS.sleep(options.warmupSeconds);
+            for (SyntheticStream stream : streams) {
+                stream.resetStats();
+            }
+            metrics.getGcPauses().reset();
+
+            long start = System.nanoTime();
+            long frames = totalFrames();
+            long bytes = totalEncodedBytes();
+            long gcCount = ProcessMetrics.getGcCount();
+            long gcTime = ProcessMetrics.getGcTimeMillis();
+            long end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+            long intervalStart = start;
+            while (intervalStart < end) {
+                long intervalEnd = Math.min(end, intervalStart + TimeUnit.SECONDS.toNanos(options.intervalSeconds));
+                TimeUnit.NANOSECONDS.sleep(intervalEnd - System.nanoTime());
+                long now = System.nanoTime();
+
+                LatencyHistogram latency = new LatencyHistogram();
+                LatencyHistogram encodeTime = new LatencyHistogram();
+                LatencyHistogram decodeTime = new LatencyHistogram();
+                LatencyHistogram gcPauses = new LatencyHistogram();
+                for (SyntheticStream stream : streams) {
+                    stream.latency.moveTo(latency);
+                    stream.encodeTime.moveTo(encodeTime);
+                    stream.decodeTime.moveTo(decodeTime);
+                }
+                metrics.getGcPauses().moveTo(gcPauses);
+                totalLatency.add(latency);
+                totalEncodeTime.add(encodeTime);
+                totalDecodeTime.add(decodeTime);
+                totalGcPauses.add(gcPauses);
+
+                long newFrames = totalFrames();
+                long newBytes = totalEncodedBytes();
+                long newGcCount = ProcessMetrics.getGcCount();
+                long newGcTime = ProcessMetrics.getGcTimeMillis();
+                double seconds = (now - intervalStart) / 1e9;
+                Json line = record("interval", (now - start) / 1e9, seconds, newFrames - frames, newBytes - bytes,
+                        latency, encodeTime, decodeTime, newGcCount - gcCount, newGcTime - gcTime, gcPauses);
+                report.write(line.toString());
+                report.newLine();
+                report.flush();
+                System.out.printf(Locale.ROOT, "[%6.0fs] %8.1f fps  latency p50 %6.2fms p99 %7.2fms p999 %7.2fms max %7.2fms  gc %d (%dms)  rss %s  failed %d%n",
+                        (now - start) / 1e9, (newFrames - frames) / seconds,
+                        latency.getPercentile(50.0) / 1000.0, latency.getPercentile(99.0) / 1000.0,
+                        latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0,
+                        newGcCount - gcCount, newGcTime - gcTime, formatBytes(ProcessMetrics.getRssBytes()), failedStreams());
+
+                frames = newFrames;
+                bytes = newBytes;
+                gcCount = newGcCount;
+                gcTime = newGcTime;
+                intervalStart = now;
+            }
+
+            long now = System.nanoTime();
+            Json summary = record("summary", (now - start) / 1e9, (now - start) / 1e9, totalFrames(), totalEncodedBytes(),
+                    totalLatency, totalEncodeTime, totalDecodeTime, -1L, -1L, totalGcPauses);
+            report.write(summary.toString());
+            report.newLine();
+            System.out.printf(Locale.ROOT, "Done. Latency p50 %.2fms p99 %.2fms p999 %.2fms max %.2fms. Report: %s%n",
+                    totalLatency.getPercentile(50.0) / 1000.0, totalLatency.getPercentile(99.0) / 1000.0,
+                    totalLatency.getPercentile(99.9) / 1000.0, totalLatency.getMax() / 1000.0, options.report.toAbsolutePath());
+            int failed = failedStreams();
+            if (failed != 0) {
+                System.err.printf(Locale.ROOT, "%d of %d streams failed%n", failed, options.streams);
+            }
+            return failed;
+        } finally {
+            for (SyntheticStream stream : streams) {
+                stream.stop();
+            }
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(5L));
+            }
+        }
+    }
+
+    private Json record(
+            String type,
+            double elapsedSeconds,
+            double seconds,
+            long frames,
+            long encodedBytes,
+            LatencyHistogram latency,
+            LatencyHistogram encodeTime,
+            LatencyHistogram decodeTime,
+            long gcCount,
+            long gcTimeMillis,
+            LatencyHistogram gcPauses
+    ) {
+        Json gc = new Json();
+        if (gcCount >= 0L) {
+            gc.put("count", gcCount).put("timeMillis", gcTimeMillis);
+        } else {
+            gc.put("count", gcPauses.getTotalCount());
+        }
+        if (metrics.hasGcNotifications()) {
+            gc.put("pauseMicros", percentiles(gcPauses));
+        }
+        long allocated;
+        try {
+            allocated = NativeMemory.getAllocatedBytes();
+        } catch (Exception e) {
+            allocated = -1L;
+        }
+        return new Json()
+                .put("type", type)
+                .put("elapsedSeconds", elapsedSeconds)
+                .put("streams", options.streams)
+                .put("failedStreams", failedStreams())
+                .put("width", options.width)
+                .put("height", options.height)
+                .put("fps", options.fps)
+                .put("complexity", options.complexity.name())
+                .put("threads", options.threads)
+                .put("frames", frames)
+                .put("framesPerSecond", frames / seconds)
+                .put("bitrateBps", encodedBytes * 8L / seconds)
+                .put("latencyMicros", percentiles(latency))
+                .put("encodeMicros", percentiles(encodeTime))
+                .put("decodeMicros", percentiles(decodeTime))
+                .put("gc", gc)
+                .put("rssBytes", ProcessMetrics.getRssBytes())
+                .put("heapUsedBytes", ProcessMetrics.getHeapUsedBytes())
+                .put("nativeTrackedBytes", NativeMemory.getTrackedBytes())
+                .put("nativeAllocatedBytes", allocated);
+    }
+
+    private static Json percentiles(LatencyHistogram histogram) {
+        return new Json()
+                .put("count", histogram.getTotalCount())
+                .put("mean", histogram.getMean())
+                .put("p50", histogram.getPercentile(50.0))
+                .put("p99", histogram.getPercentile(99.0))
+                .put("p999", histogram.getPercentile(99.9))
+                .put("max", histogram.getMax());
+    }
+
+    private int failedStreams() {
+        int failed = 0;
+        for (SyntheticStream stream : streams) {
+            if (stream.isFailed()) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private long totalFrames() {
+        long frames = 0L;
+        for (SyntheticStream stream : streams) {
+            frames += stream.frames.get();
+        }
+        return frames;
+    }
+
+    private long totalEncodedBytes() {
+        long bytes = 0L;
+        for (SyntheticStream stream : streams) {
+            bytes += stream.encodedBytes.get();
+        }
+        return bytes;
+    }
+
+    private static String formatBytes(long bytes) {
+        return bytes < 0L ? "n/a" : String.format(Locale.ROOT, "%.1fMiB", bytes / (1024.0 * 1024.0));
+    }
+
+}
@@ -0,0 +1,113 @@
+package ru.dimaskama.javah264.loadtest;
+
+import ru.dimaskama.javah264.H264Encoder;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+class LoadTestOptions {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: LoadTest [options]",
+            "  --streams <n>        number of concurrent streams (default 8)",
+            "  --width <px>         frame width (default 1280)",
+            "  --height <px>        frame height (default 720)",
+            "  --fps <n>            frames per second of each stream (default 30)",
+            "  --duration <s>       measured run duration in seconds (default 60)",
+            "  --warmup <s>         warmup before measuring in seconds (default 10)",
+            "  --interval <s>       reporting interval in seconds (default 10)",
+            "  --complexity <c>     encoder complexity: Low, Medium, High (default Medium)",
+            "  --threads <n>        encoder multipleThreadIdc (default 1)",
+            "  --bitrate <bps>      encoder target bitrate (default 2000000)",
+            "  --report <file>      JSON Lines report file (default loadtest-report.jsonl)"
+    );
+
+    int streams = 8;
+    int width = 1280;
+    int height = 720;
+    int fps = 30;
+    long durationSeconds = 60L;
+    long warmupSeconds = 10L;
+    long intervalSeconds = 10L;
+    H264Encoder.Complexity complexity = H264Encoder.Complexity.Medium;
+    short threads = 1;
+    int bitrate = 2_000_000;
+    Path report = Paths.get("loadtest-report.jsonl");
+
+    static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (name.equals("--help") || name.equals("-h")) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            switch (name) {
+                case "--streams":
+                    options.streams = positive(name, Integer.parseInt(value));
+                    break;
+                case "--width":
+                    options.width = positive(name, Integer.parseInt(value));
+                    break;
+                case "--height":
+                    options.height = positive(name, Integer.parseInt(value));
+                    break;
+                case "--fps":
+                    options.fps = positive(name, Integer.parseInt(value));
+                    break;
+                case "--duration":
+                    options.durationSeconds = positive(name, Integer.parseInt(value));
+                    break;
+                case "--warmup":
+                    options.warmupSeconds = nonNegative(name, Long.parseLong(value));
+                    break;
+                case "--interval":
+                    options.intervalSeconds = positive(name, Integer.parseInt(value));
+                    break;
+                case "--complexity":
+                    options.complexity = parseComplexity(value);
+                    break;
+                case "--threads":
+                    options.threads = Short.parseShort(value);
+                    break;
+                case "--bitrate":
+                    options.bitrate = positive(name, Integer.parseInt(value));
+                    break;
+                case "--report":
+                    options.report = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name + System.lineSeparator() + USAGE);
+            }
+        }
+        return options;
+    }
+
+    private static int positive(String name, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+        return value;
+    }
+
+    private static long nonNegative(String name, long value) {
+        if (value < 0L) {
+            throw new IllegalArgumentException(name + " must not be negative: " + value);
+        }
+        return value;
+    }
+
+    private static H264Encoder.Complexity parseComplexity(String value) {
+        for (H264Encoder.Complexity complexity : H264Encoder.Complexity.values()) {
+            if (complexity.name().toLowerCase(Locale.ROOT).equals(value.toLowerCase(Locale.ROOT))) {
+                return complexity;
+            }
+        }
+        throw new IllegalArgumentException("Unknown complexity: " + value);
+    }
+
+}
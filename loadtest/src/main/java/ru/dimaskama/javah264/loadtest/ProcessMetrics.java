@@ -0,0 +1,103 @@
+package ru.dimaskama.javah264.loadtest;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/// Process-level metrics: GC pauses, resident set size and heap usage
+class ProcessMetrics {
+
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    private final LatencyHistogram gcPauses = new LatencyHistogram();
+    private final boolean gcNotifications;
+
+    ProcessMetrics() {
+        boolean subscribed = false;
+        try {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                        if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                            if (isPause(info.getGcName(), info.getGcAction())) {
+                                gcPauses.record(info.getGcInfo().getDuration() * 1000L);
+                            }
+                        }
+                    }, null, null);
+                    subscribed = true;
+                }
+            }
+        } catch (RuntimeException | LinkageError ignored) {
+            // Not a HotSpot-compatible JVM, only collection counts and times are reported
+        }
+        this.gcNotifications = subscribed;
+    }
+
+    // Concurrent collectors report whole cycles too, most of which runs alongside the application.
+    // ZGC and Shenandoah report them as "end of GC cycle" from their "Cycles" collectors, separately from pauses.
+    // CMS reports its cycle as "ConcurrentMarkSweep" without separating the pauses, so it's skipped
+    static boolean isPause(String gcName, String gcAction) {
+        return !gcAction.toLowerCase(Locale.ROOT).contains("cycle")
+                && !gcName.endsWith("Cycles")
+                && !gcName.equals("ConcurrentMarkSweep");
+    }
+
+    /// Stop-the-world GC pause durations in microseconds, empty if the JVM doesn't report them
+    LatencyHistogram getGcPauses() {
+        return gcPauses;
+    }
+
+    boolean hasGcNotifications() {
+        return gcNotifications;
+    }
+
+    static long getGcCount() {
+        long count = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    static long getGcTimeMillis() {
+        long time = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0L, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    static long getHeapUsedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /// Resident set size in bytes, -1 if it is unknown (only Linux is supported)
+    static long getRssBytes() {
+        if (!Files.isReadable(PROC_STATUS)) {
+            return -1L;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(PROC_STATUS, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.substring("VmRSS:".length()).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024L;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1L;
+    }
+
+}
@@ -0,0 +1,122 @@
+package ru.dimaskama.javah264.loadtest;
+
+import ru.dimaskama.javah264.H264Decoder;
+import ru.dimaskama.javah264.H264Encoder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/// One stream: synthetic frames are encoded and decoded back at a fixed frame rate.
+///
+/// Latency is measured from the time the frame was scheduled, not from when its processing started,
+/// so time spent waiting behind a late frame is counted too.
+class SyntheticStream implements Runnable {
+
+    private final LoadTestOptions options;
+    private final H264Encoder encoder;
+    private final H264Decoder decoder;
+    // Twice as wide as the frame, so frames can be cut from it at moving offsets
+    private final byte[] pattern;
+    private final byte[] frame;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LatencyHistogram encodeTime = new LatencyHistogram();
+    final LatencyHistogram decodeTime = new LatencyHistogram();
+    final AtomicLong frames = new AtomicLong();
+    final AtomicLong encodedBytes = new AtomicLong();
+    private volatile boolean stopped;
+    private volatile boolean failed;
+
+    SyntheticStream(LoadTestOptions options, int index) throws Exception {
+        this.options = options;
+        this.encoder = H264Encoder.builder()
+                .targetBitrate(options.bitrate)
+                .maxFrameRate(options.fps)
+                .rateControlMode(H264Encoder.RateControlMode.Bitrate)
+                .complexity(options.complexity)
+                .multipleThreadIdc(options.threads)
+                .expectedDimensions(options.width, options.height)
+                .build();
+        this.decoder = H264Decoder.builder()
+                .expectedDimensions(options.width, options.height)
+                .build();
+        this.pattern = createPattern(options.width * 2, options.height, new Random(index));
+        this.frame = new byte[options.width * options.height * 4];
+    }
+
+    private static byte[] createPattern(int width, int height, Random random) {
+        byte[] pattern = new byte[width * height * 4];
+        int phase = random.nextInt(256);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                pattern[i] = (byte) (x + phase);
+                pattern[i + 1] = (byte) (y + phase);
+                pattern[i + 2] = (byte) ((x ^ y) + random.nextInt(8));
+                pattern[i + 3] = (byte) 0xFF;
+            }
+        }
+        return pattern;
+    }
+
+    @Override
+    public void run() {
+        long period = TimeUnit.SECONDS.toNanos(1L) / options.fps;
+        long scheduled = System.nanoTime();
+        long index = 0L;
+        try {
+            while (!stopped) {
+                long now;
+                while ((now = System.nanoTime()) < scheduled) {
+                    LockSupport.parkNanos(scheduled - now);
+                }
+                nextFrame(index++);
+                long start = System.nanoTime();
+                byte[] bitstream = encoder.encodeRGBA(options.width, options.height, frame);
+                long encoded = System.nanoTime();
+                if (bitstream.length != 0) {
+                    decoder.decodeRGBA(bitstream);
+                }
+                long end = System.nanoTime();
+                latency.recordNanos(end - scheduled);
+                encodeTime.recordNanos(encoded - start);
+                decodeTime.recordNanos(end - encoded);
+                frames.incrementAndGet();
+                encodedBytes.addAndGet(bitstream.length);
+                scheduled += period;
+            }
+        } catch (Throwable e) {
+            failed = true;
+            System.err.println(Thread.currentThread().getName() + " failed:");
+            e.printStackTrace();
+        } finally {
+            decoder.close();
+            encoder.close();
+        }
+    }
+
+    private void nextFrame(long index) {
+        int rowSize = options.width * 4;
+        int offset = (int) (index % options.width) * 4;
+        for (int y = 0; y < options.height; y++) {
+            System.arraycopy(pattern, y * rowSize * 2 + offset, frame, y * rowSize, rowSize);
+        }
+    }
+
+    void resetStats() {
+        latency.reset();
+        encodeTime.reset();
+        decodeTime.reset();
+    }
+
+    /// Whether the stream stopped on an error
+    boolean isFailed() {
+        return failed;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+}
@@ -0,0 +1,65 @@
+package ru.dimaskama.javah264.loadtest;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.dimaskama.javah264.loadtest.LatencyHistogram.highestValue;
+import static ru.dimaskama.javah264.loadtest.LatencyHistogram.index;
+
+public class LatencyHistogramTest {
+
+    @Test
+    @DisplayName("Bucket boundaries")
+    void bucketBoundaries() {
+        // Values below 64 are exact
+        assertEquals(63, index(63L));
+        assertEquals(63L, highestValue(index(63L)));
+        // Then each power of two is split into 64 sub-buckets
+        assertEquals(64, index(64L));
+        assertEquals(64L, highestValue(index(64L)));
+        assertEquals(127, index(127L));
+        assertEquals(127L, highestValue(index(127L)));
+        assertEquals(index(127L) + 1, index(128L));
+        assertEquals(index(128L), index(129L));
+        assertEquals(index(129L) + 1, index(130L));
+        assertEquals(129L, highestValue(index(128L)));
+
+        long value = 1L << 40;
+        long bucketWidth = 1L << 34;
+        assertEquals(index(value - 1L) + 1, index(value));
+        assertEquals(index(value), index(value + bucketWidth - 1L));
+        assertEquals(index(value) + 1, index(value + bucketWidth));
+        assertEquals(value + bucketWidth - 1L, highestValue(index(value)));
+        assertTrue(highestValue(index(value)) - value < value * 0.02);
+
+        assertEquals(Long.MAX_VALUE, highestValue(index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    @DisplayName("Percentile upper bounds")
+    void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getPercentile(99.0));
+        histogram.record(63L);
+        histogram.record(64L);
+        histogram.record(127L);
+        histogram.record(128L);
+        histogram.record(1L << 40);
+        assertEquals(5L, histogram.getTotalCount());
+        assertEquals(63L, histogram.getPercentile(10.0));
+        assertEquals(64L, histogram.getPercentile(30.0));
+        assertEquals(127L, histogram.getPercentile(50.0));
+        // Upper bound of the 128..129 bucket
+        assertEquals(129L, histogram.getPercentile(70.0));
+        // Upper bound is capped by the maximum
+        assertEquals(1L << 40, histogram.getPercentile(90.0));
+        assertEquals(1L << 40, histogram.getPercentile(100.0));
+        assertEquals(1L << 40, histogram.getMax());
+
+        LatencyHistogram single = new LatencyHistogram();
+        single.record(128L);
+        assertEquals(128L, single.getPercentile(100.0));
+    }
+
+}
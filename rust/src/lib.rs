@@ -1,4 +1,5 @@
 mod openh264;
+mod memory;
 
 // #[cfg(test)]
 // mod tests {
@@ -1,35 +1,55 @@
 use jni::JNIEnv;
-use jni::objects::{JByteArray, JClass, JObject, JObjectArray, JValue};
+use std::ptr::{addr_of_mut, null_mut};
+use std::slice;
+use jni::objects::{JByteArray, JClass, JIntArray, JObject, JObjectArray, JValue};
 use jni::sys::{jint, jlong, jsize};
-use openh264::decoder::{DecodedYUV, Decoder, DecoderConfig, Flush};
+use openh264::decoder::{Decoder, DecoderConfig};
 use openh264::{nal_units, OpenH264API};
-use openh264::formats::YUVSource;
+use openh264_sys2::{DecoderRawAPI, SBufferInfo, SDecoderStatistics, DECODER_OPTION_ERROR_CON_IDC, DECODER_OPTION_GET_STATISTICS, DECODER_OPTION_NUM_OF_FRAMES_REMAINING_IN_BUFFER};
 use crate::openh264::exceptions::{throw_illegal_argument_exception, throw_runtime_exception};
 
+// Must match the order of ru.dimaskama.javah264.H264Decoder.FlushBehavior
+const FLUSH_AUTO: i32 = 0;
+const FLUSH_FLUSH: i32 = 1;
+const FLUSH_NO_FLUSH: i32 = 2;
+
+/// Boxed decoder behind the Java pointer.
+/// Frames are read through the raw API: openh264-rs turns every non-zero decoding state into an error,
+/// which would drop the pictures that OpenH264 has concealed
+pub struct DecoderInstance {
+    decoder: Decoder,
+    flush_behavior: i32,
+}
+
 #[no_mangle]
 pub extern "C" fn Java_ru_dimaskama_javah264_H264Decoder_createDecoder0(
     mut env: JNIEnv,
     _: JClass,
-    flush_behavior: jint
+    flush_behavior: jint,
+    error_concealment: jint
 ) -> jlong {
-    let config = DecoderConfig::new()
-        .flush_after_decode(match flush_behavior {
-            0 => Flush::Auto,
-            1 => Flush::Flush,
-            2 => Flush::NoFlush,
-            _ => {
-                throw_illegal_argument_exception(&mut env, format!("Invalid flush behaviour: {}", flush_behavior));
-                return 0;
-            }
-        });
-    let decoder = match Decoder::with_api_config(OpenH264API::from_source(), config) {
+    if flush_behavior != FLUSH_AUTO && flush_behavior != FLUSH_FLUSH && flush_behavior != FLUSH_NO_FLUSH {
+        throw_illegal_argument_exception(&mut env, format!("Invalid flush behaviour: {}", flush_behavior));
+        return 0;
+    }
+    let mut decoder = match Decoder::with_api_config(OpenH264API::from_source(), DecoderConfig::new()) {
         Ok(d) => {d}
         Err(err) => {
             throw_illegal_argument_exception(&mut env, format!("Invalid decoder parameters: {}", err.to_string()));
             return 0;
         }
     };
-    let raw = Box::into_raw(Box::new(decoder));
+    if error_concealment != -1 {
+        let mut value: i32 = error_concealment;
+        let result = unsafe {
+            decoder.raw_api().set_option(DECODER_OPTION_ERROR_CON_IDC, addr_of_mut!(value).cast())
+        };
+        if result != 0 {
+            throw_illegal_argument_exception(&mut env, format!("Invalid error concealment: {}", error_concealment));
+            return 0;
+        }
+    }
+    let raw = Box::into_raw(Box::new(DecoderInstance { decoder, flush_behavior }));
     raw as jlong
 }
 
@@ -38,11 +58,10 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Decoder_decodeRGBA0<'a>(
     mut env: JNIEnv<'a>,
     _: JClass<'a>,
     ptr: jlong,
-    packet: JByteArray<'a>
+    packet: JByteArray<'a>,
+    status: JIntArray<'a>
 ) -> JObject<'a> {
-    decode_and_construct(&mut env, ptr, packet, 4, |f, b| {
-        f.write_rgba8(b)
-    })
+    decode_and_construct(&mut env, ptr, packet, status, 4)
 }
 
 #[no_mangle]
@@ -50,21 +69,20 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Decoder_decodeRGB0<'a>(
     mut env: JNIEnv<'a>,
     _: JClass<'a>,
     ptr: jlong,
-    packet: JByteArray<'a>
+    packet: JByteArray<'a>,
+    status: JIntArray<'a>
 ) -> JObject<'a> {
-    decode_and_construct(&mut env, ptr, packet, 3, |f, b| {
-        f.write_rgb8(b)
-    })
+    decode_and_construct(&mut env, ptr, packet, status, 3)
 }
 
 fn decode_and_construct<'a>(
     env: &mut JNIEnv<'a>,
     ptr: jlong,
     packet: JByteArray<'a>,
-    pixel_size: usize,
-    write_fn: fn(&DecodedYUV, &mut [u8]),
+    status: JIntArray<'a>,
+    pixel_size: usize
 ) -> JObject<'a> {
-    let decoder = unsafe { &mut *(ptr as *mut Decoder) };
+    let instance = unsafe { &mut *(ptr as *mut DecoderInstance) };
     let bytes = match env.convert_byte_array(packet) {
         Ok(b) => b,
         Err(err) => {
@@ -72,12 +90,13 @@ fn decode_and_construct<'a>(
             return JObject::null();
         }
     };
-    let decoded = match decoder.decode(&*bytes) {
-        Ok(opt) => match opt {
-            Some(d) => {d}
-            None => {return JObject::null()}
-        },
-        Err(_) => {return JObject::null()},
+    let (decode_status, decoded) = decode_with_status(instance, &*bytes, |p| DecodedFrame::convert(p, pixel_size));
+    if !set_status(env, &status, decode_status) {
+        return JObject::null();
+    }
+    let decoded = match decoded {
+        Some(d) => {d}
+        None => {return JObject::null()}
     };
     let result_class = match env.find_class("ru/dimaskama/javah264/DecodeResult") {
         Ok(c) => c,
@@ -86,41 +105,248 @@ fn decode_and_construct<'a>(
             return JObject::null();
         }
     };
-    match create_result(env, &result_class, &decoded, pixel_size, write_fn) {
+    match create_result(env, &result_class, &decoded) {
         None => {JObject::null()}
         Some(o) => {o}
     }
 }
 
+// Must match the order of ru.dimaskama.javah264.DecodeStatus
+pub const STATUS_FRAME: i32 = 0;
+pub const STATUS_NO_FRAME: i32 = 1;
+pub const STATUS_CONCEALED: i32 = 2;
+pub const STATUS_REFERENCE_LOST: i32 = 3;
+pub const STATUS_ERROR: i32 = 4;
+
+// DECODING_STATE bits, see codec_def.h
+const DS_FRAME_PENDING: i32 = 0x01;
+const DS_REF_LOST: i32 = 0x02;
+const DS_DEP_LAYER_LOST: i32 = 0x08;
+const DS_NO_PARAM_SETS: i32 = 0x10;
+const DS_DATA_ERROR_CONCEALED: i32 = 0x20;
+const DS_REF_LIST_NULL_PTRS: i32 = 0x40;
+
+// Counters from the decoder statistics that grow when the stream is damaged
+struct ErrorCounters {
+    concealed_frames: u32,
+    lost_idrs: u32,
+    frozen_frames: u32,
+}
+
+// Returns None if the decoder refused to report its statistics
+fn error_counters(api: &mut DecoderRawAPI) -> Option<ErrorCounters> {
+    let mut stats: SDecoderStatistics = unsafe { std::mem::zeroed() };
+    let result = unsafe {
+        api.get_option(DECODER_OPTION_GET_STATISTICS, addr_of_mut!(stats).cast())
+    };
+    if result != 0 {
+        return None;
+    }
+    Some(ErrorCounters {
+        concealed_frames: stats.uiEcFrameNum,
+        lost_idrs: stats.uiIDRLostNum,
+        frozen_frames: stats.uiFreezingIDRNum + stats.uiFreezingNonIDRNum,
+    })
+}
+
+fn frames_remaining(api: &mut DecoderRawAPI) -> Option<i32> {
+    let mut frames: i32 = 0;
+    let result = unsafe {
+        api.get_option(DECODER_OPTION_NUM_OF_FRAMES_REMAINING_IN_BUFFER, addr_of_mut!(frames).cast())
+    };
+    if result != 0 {
+        return None;
+    }
+    Some(frames)
+}
+
+/// YUV 4:2:0 picture in the decoder's own buffers. Only valid until the next call to the decoder
+pub struct Picture<'a> {
+    pub width: usize,
+    pub height: usize,
+    pub timestamp: i64,
+    y: &'a [u8],
+    u: &'a [u8],
+    v: &'a [u8],
+    y_stride: usize,
+    uv_stride: usize,
+}
+
+impl<'a> Picture<'a> {
+    unsafe fn from_raw(dst: &[*mut u8; 3], info: &SBufferInfo) -> Option<Picture<'a>> {
+        if info.iBufferStatus != 1 || dst.iter().any(|p| p.is_null()) {
+            return None;
+        }
+        let buffer = info.UsrData.sSystemBuffer;
+        let width = buffer.iWidth as usize;
+        let height = buffer.iHeight as usize;
+        let y_stride = buffer.iStride[0] as usize;
+        let uv_stride = buffer.iStride[1] as usize;
+        let chroma_height = (height + 1) / 2;
+        Some(Picture {
+            width,
+            height,
+            timestamp: info.uiOutYuvTimeStamp as i64,
+            y: slice::from_raw_parts(dst[0], y_stride * height),
+            u: slice::from_raw_parts(dst[1], uv_stride * chroma_height),
+            v: slice::from_raw_parts(dst[2], uv_stride * chroma_height),
+            y_stride,
+            uv_stride,
+        })
+    }
+
+    pub fn image_size(&self, pixel_size: usize) -> usize {
+        self.width * self.height * pixel_size
+    }
+
+    /// Converts to RGB (pixel size 3) or RGBA (pixel size 4) with the same coefficients as openh264-rs
+    pub fn write_rgb(&self, pixel_size: usize, target: &mut [u8]) {
+        let row_size = self.width * pixel_size;
+        for (row, target_row) in target.chunks_exact_mut(row_size).take(self.height).enumerate() {
+            let y_row = &self.y[row * self.y_stride..];
+            let u_row = &self.u[row / 2 * self.uv_stride..];
+            let v_row = &self.v[row / 2 * self.uv_stride..];
+            for (x, pixel) in target_row.chunks_exact_mut(pixel_size).enumerate() {
+                let y = y_row[x] as f32;
+                let u = u_row[x / 2] as f32 - 128.0;
+                let v = v_row[x / 2] as f32 - 128.0;
+                pixel[0] = (y + 1.402 * v) as u8;
+                pixel[1] = (y - 0.344 * u - 0.714 * v) as u8;
+                pixel[2] = (y + 1.772 * u) as u8;
+                if pixel_size == 4 {
+                    pixel[3] = 255;
+                }
+            }
+        }
+    }
+}
+
+/// Decoded frame converted to RGB(A), so it doesn't borrow the decoder
+pub struct DecodedFrame {
+    pub width: usize,
+    pub height: usize,
+    pub timestamp: i64,
+    pub image: Vec<u8>,
+}
+
+impl DecodedFrame {
+    pub fn convert(picture: &Picture, pixel_size: usize) -> Self {
+        let mut image = vec![0u8; picture.image_size(pixel_size)];
+        picture.write_rgb(pixel_size, &mut image);
+        DecodedFrame {
+            width: picture.width,
+            height: picture.height,
+            timestamp: picture.timestamp,
+            image,
+        }
+    }
+}
+
+/// Decodes the packet, telling apart "no frame yet", concealed frames, reference loss and other errors.
+/// The picture is handed to `on_frame` before the decoder is called again.
+/// Concealed pictures are returned as well, with STATUS_CONCEALED
+pub fn decode_with_status<R>(
+    instance: &mut DecoderInstance,
+    packet: &[u8],
+    on_frame: impl FnOnce(&Picture) -> R
+) -> (i32, Option<R>) {
+    let api = unsafe { instance.decoder.raw_api() };
+    let before = error_counters(api);
+    let mut dst = [null_mut::<u8>(); 3];
+    let mut info: SBufferInfo = unsafe { std::mem::zeroed() };
+    let mut state = unsafe {
+        api.decode_frame_no_delay(packet.as_ptr(), packet.len() as i32, dst.as_mut_ptr(), &mut info)
+    } as i32;
+    if info.iBufferStatus != 1 {
+        let flush = match instance.flush_behavior {
+            FLUSH_FLUSH => true,
+            FLUSH_AUTO => frames_remaining(api).map_or(false, |f| f > 0),
+            _ => false,
+        };
+        if flush {
+            dst = [null_mut::<u8>(); 3];
+            info = unsafe { std::mem::zeroed() };
+            state |= unsafe { api.flush_frame(dst.as_mut_ptr(), &mut info) } as i32;
+        }
+    }
+    let result = unsafe { Picture::from_raw(&dst, &info) }.map(|p| on_frame(&p));
+    let after = error_counters(api);
+    let error = state & !DS_FRAME_PENDING;
+    let (mut reference_lost, mut concealed) = match (before, after) {
+        (Some(before), Some(after)) => (
+            after.lost_idrs != before.lost_idrs || after.frozen_frames != before.frozen_frames,
+            after.concealed_frames != before.concealed_frames,
+        ),
+        _ => (false, false),
+    };
+    reference_lost |= error & (DS_REF_LOST | DS_DEP_LAYER_LOST | DS_NO_PARAM_SETS | DS_REF_LIST_NULL_PTRS) != 0;
+    concealed |= error & DS_DATA_ERROR_CONCEALED != 0;
+    match result {
+        Some(r) => (if error != 0 || concealed || reference_lost { STATUS_CONCEALED } else { STATUS_FRAME }, Some(r)),
+        None => (if reference_lost || concealed { STATUS_REFERENCE_LOST } else if error != 0 { STATUS_ERROR } else { STATUS_NO_FRAME }, None),
+    }
+}
+
+/// Flushes the frames that are left in the decoder, handing each one to `on_frame`.
+/// Returns None on error
+pub fn flush_remaining<R>(
+    instance: &mut DecoderInstance,
+    mut on_frame: impl FnMut(&Picture) -> R
+) -> Option<Vec<R>> {
+    let api = unsafe { instance.decoder.raw_api() };
+    let remaining = frames_remaining(api)?;
+    let mut frames = Vec::new();
+    for _ in 0..remaining {
+        let mut dst = [null_mut::<u8>(); 3];
+        let mut info: SBufferInfo = unsafe { std::mem::zeroed() };
+        let state = unsafe { api.flush_frame(dst.as_mut_ptr(), &mut info) } as i32;
+        if state & !DS_FRAME_PENDING != 0 {
+            return None;
+        }
+        if let Some(picture) = unsafe { Picture::from_raw(&dst, &info) } {
+            frames.push(on_frame(&picture));
+        }
+    }
+    Some(frames)
+}
+
+fn set_status<'a>(env: &mut JNIEnv<'a>, status: &JIntArray<'a>, value: i32) -> bool {
+    match env.set_int_array_region(status, 0, &[value]) {
+        Ok(_) => true,
+        Err(err) => {
+            throw_runtime_exception(env, format!("Failed to set decode status: {}", err));
+            false
+        }
+    }
+}
+
 #[no_mangle]
 pub extern "C" fn Java_ru_dimaskama_javah264_H264Decoder_flushRemainingRGBA0<'a>(
     mut env: JNIEnv<'a>,
     _: JClass<'a>,
-    ptr: jlong
+    ptr: jlong,
+    status: JIntArray<'a>
 ) -> JObjectArray<'a> {
-    flush_remaining_and_construct(&mut env, ptr, 4, |f, b| {
-        f.write_rgba8(b)
-    })
+    flush_remaining_and_construct(&mut env, ptr, status, 4)
 }
 
 #[no_mangle]
 pub extern "C" fn Java_ru_dimaskama_javah264_H264Decoder_flushRemainingRGB0<'a>(
     mut env: JNIEnv<'a>,
     _: JClass<'a>,
-    ptr: jlong
+    ptr: jlong,
+    status: JIntArray<'a>
 ) -> JObjectArray<'a> {
-    flush_remaining_and_construct(&mut env, ptr, 3, |f, b| {
-        f.write_rgb8(b)
-    })
+    flush_remaining_and_construct(&mut env, ptr, status, 3)
 }
 
 fn flush_remaining_and_construct<'a>(
     env: &mut JNIEnv<'a>,
     ptr: jlong,
-    pixel_size: usize,
-    write_fn: fn(&DecodedYUV, &mut [u8])
+    status: JIntArray<'a>,
+    pixel_size: usize
 ) -> JObjectArray<'a> {
-    let decoder = unsafe { &mut *(ptr as *mut Decoder) };
+    let instance = unsafe { &mut *(ptr as *mut DecoderInstance) };
     let result_class = match env.find_class("ru/dimaskama/javah264/DecodeResult") {
         Ok(c) => c,
         Err(err) => {
@@ -128,11 +354,14 @@ fn flush_remaining_and_construct<'a>(
             return JObjectArray::default();
         }
     };
-    match decoder.flush_remaining() {
-        Ok(v) => {
+    match flush_remaining(instance, |p| DecodedFrame::convert(p, pixel_size)) {
+        Some(v) => {
+            if !set_status(env, &status, if v.is_empty() { STATUS_NO_FRAME } else { STATUS_FRAME }) {
+                return JObjectArray::default();
+            }
             let return_array = env.new_object_array(v.len() as jsize, &result_class, JObject::null()).unwrap();
             for (i, item) in v.iter().enumerate() {
-                match create_result(env, &result_class, &item, pixel_size, write_fn) {
+                match create_result(env, &result_class, item) {
                     Some(o) => {
                         env.set_object_array_element(&return_array, i as i32, o).expect("Couldn't set array element");
                     }
@@ -141,7 +370,10 @@ fn flush_remaining_and_construct<'a>(
             }
             return_array
         }
-        Err(_) => {
+        None => {
+            if !set_status(env, &status, STATUS_ERROR) {
+                return JObjectArray::default();
+            }
             env.new_object_array(0, result_class, JObject::null()).unwrap()
         }
     }
@@ -150,14 +382,9 @@ fn flush_remaining_and_construct<'a>(
 fn create_result<'a>(
     env: &mut JNIEnv<'a>,
     result_class: &JClass<'a>,
-    decoded: &DecodedYUV,
-    pixel_size: usize,
-    write_fn: fn(&DecodedYUV, &mut [u8])
+    decoded: &DecodedFrame
 ) -> Option<JObject<'a>> {
-    let (width, height) = decoded.dimensions();
-    let mut buffer = vec![0u8; width * height * pixel_size];
-    write_fn(&decoded, &mut buffer);
-    let byte_array = match env.byte_array_from_slice(&buffer) {
+    let byte_array = match env.byte_array_from_slice(&decoded.image) {
         Ok(arr) => arr,
         Err(err) => {
             throw_runtime_exception(env, format!("Failed to convert to java array: {}", err));
@@ -168,9 +395,9 @@ fn create_result<'a>(
         result_class,
         "(IIJ[B)V",
         &[
-            JValue::from(width as i32),
-            JValue::from(height as i32),
-            JValue::from(decoded.timestamp().as_millis() as i64),
+            JValue::from(decoded.width as i32),
+            JValue::from(decoded.height as i32),
+            JValue::from(decoded.timestamp),
             JValue::Object(&JObject::from(byte_array)),
         ],
     ) {
@@ -190,7 +417,7 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Decoder_destroyDecoder0(
 ) {
     if ptr != 0 {
         unsafe {
-            drop(Box::from_raw(ptr as *mut Decoder));
+            drop(Box::from_raw(ptr as *mut DecoderInstance));
         };
     }
 }
@@ -1,11 +1,33 @@
 use jni::JNIEnv;
-use jni::objects::{JByteArray, JClass, JObject, JObjectArray};
+use jni::objects::{JByteArray, JClass, JObject, JIntArray, JObjectArray, JValue};
 use jni::sys::{jboolean, jbyte, jfloat, jint, jlong, jshort, jsize};
 use openh264::encoder::{BitRate, Complexity, Encoder, EncoderConfig, FrameRate, IntraFramePeriod, Level, Profile, QpRange, RateControlMode, SpsPpsStrategy, UsageType};
-use openh264::formats::{RgbSliceU8, RgbaSliceU8, YUVBuffer};
-use openh264::{OpenH264API};
+use openh264::formats::{RgbSliceU8, RgbaSliceU8, YUVBuffer, YUVSource};
+use openh264::{OpenH264API, Timestamp};
 use crate::openh264::exceptions::{throw_encoder_exception, throw_illegal_argument_exception, throw_runtime_exception};
 
+/// Converts RGB(A) data of the given dimensions into the YUV buffer
+pub type ReadRgbFn = fn(&mut YUVBuffer, &[u8], (usize, usize));
+
+/// Boxed encoder behind the Java pointer
+pub struct EncoderInstance {
+    encoder: Encoder,
+    // Reused while the frame dimensions don't change, so input isn't allocated per frame
+    yuv: Option<YUVBuffer>,
+}
+
+impl EncoderInstance {
+    /// Converts the image to YUV, returning the encoder along with it
+    pub fn prepare(&mut self, data: &[u8], dims: (usize, usize), read_fn: ReadRgbFn) -> (&mut Encoder, &YUVBuffer) {
+        if self.yuv.as_ref().map_or(true, |yuv| yuv.dimensions() != dims) {
+            self.yuv = Some(YUVBuffer::new(dims.0, dims.1));
+        }
+        let yuv = self.yuv.as_mut().unwrap();
+        read_fn(yuv, data, dims);
+        (&mut self.encoder, yuv)
+    }
+}
+
 #[no_mangle]
 pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_createEncoder0(
     mut env: JNIEnv,
@@ -138,7 +160,7 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_createEncoder0(
             return 0;
         }
     };
-    let raw = Box::into_raw(Box::new(encoder));
+    let raw = Box::into_raw(Box::new(EncoderInstance { encoder, yuv: None }));
     raw as jlong
 }
 
@@ -151,8 +173,8 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_encodeRGBA0<'a>(
     height: jint,
     rgba: JByteArray<'a>
 ) -> JByteArray<'a> {
-    encode_and_construct(&mut env, ptr, width, height, rgba, |data, dims| {
-        YUVBuffer::from_rgb_source(RgbaSliceU8::new(data, dims))
+    encode_and_construct(&mut env, ptr, width, height, rgba, |yuv, data, dims| {
+        yuv.read_rgb(RgbaSliceU8::new(data, dims))
     })
 }
 
@@ -165,8 +187,8 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_encodeRGB0<'a>(
     height: jint,
     rgb: JByteArray<'a>
 ) -> JByteArray<'a> {
-    encode_and_construct(&mut env, ptr, width, height, rgb, |data, dims| {
-        YUVBuffer::from_rgb_source(RgbSliceU8::new(data, dims))
+    encode_and_construct(&mut env, ptr, width, height, rgb, |yuv, data, dims| {
+        yuv.read_rgb(RgbSliceU8::new(data, dims))
     })
 }
 
@@ -176,9 +198,9 @@ fn encode_and_construct<'a>(
     width: jint,
     height: jint,
     data: JByteArray<'a>,
-    yuv_source_fn: fn(&[u8], (usize, usize)) -> YUVBuffer
+    read_fn: ReadRgbFn
 ) -> JByteArray<'a> {
-    let encoder = unsafe { &mut *(ptr as *mut Encoder) };
+    let instance = unsafe { &mut *(ptr as *mut EncoderInstance) };
     let bytes = match env.convert_byte_array(data) {
         Ok(b) => b,
         Err(err) => {
@@ -186,8 +208,8 @@ fn encode_and_construct<'a>(
             return JByteArray::default();
         }
     };
-    let yuv_source = yuv_source_fn(&bytes, (width as usize, height as usize));
-    match encoder.encode(&yuv_source) {
+    let (encoder, yuv_source) = instance.prepare(&bytes, (width as usize, height as usize), read_fn);
+    match encoder.encode(yuv_source) {
         Ok(bitstream) => {
             let vec = bitstream.to_vec();
             env.byte_array_from_slice(&vec).unwrap()
@@ -208,8 +230,8 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_encodeSeparateRGBA0<'a>
     height: jint,
     rgba: JByteArray<'a>
 ) -> JObjectArray<'a> {
-    encode_and_construct_separate(&mut env, ptr, width, height, rgba, |data, dims| {
-        YUVBuffer::from_rgb_source(RgbaSliceU8::new(data, dims))
+    encode_and_construct_separate(&mut env, ptr, width, height, rgba, |yuv, data, dims| {
+        yuv.read_rgb(RgbaSliceU8::new(data, dims))
     })
 }
 
@@ -222,8 +244,8 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_encodeSeparateRGB0<'a>(
     height: jint,
     rgb: JByteArray<'a>
 ) -> JObjectArray<'a> {
-    encode_and_construct_separate(&mut env, ptr, width, height, rgb, |data, dims| {
-        YUVBuffer::from_rgb_source(RgbSliceU8::new(data, dims))
+    encode_and_construct_separate(&mut env, ptr, width, height, rgb, |yuv, data, dims| {
+        yuv.read_rgb(RgbSliceU8::new(data, dims))
     })
 }
 
@@ -233,9 +255,9 @@ fn encode_and_construct_separate<'a>(
     width: jint,
     height: jint,
     data: JByteArray<'a>,
-    yuv_source_fn: fn(&[u8], (usize, usize)) -> YUVBuffer
+    read_fn: ReadRgbFn
 ) -> JObjectArray<'a> {
-    let encoder = unsafe { &mut *(ptr as *mut Encoder) };
+    let instance = unsafe { &mut *(ptr as *mut EncoderInstance) };
     let bytes = match env.convert_byte_array(data) {
         Ok(b) => b,
         Err(err) => {
@@ -243,8 +265,8 @@ fn encode_and_construct_separate<'a>(
             return JObjectArray::default();
         }
     };
-    let yuv_source = yuv_source_fn(&bytes, (width as usize, height as usize));
-    match encoder.encode(&yuv_source) {
+    let (encoder, yuv_source) = instance.prepare(&bytes, (width as usize, height as usize), read_fn);
+    match encoder.encode(yuv_source) {
         Ok(bitstream) => {
             let mut nal_unit_vec: Vec<JByteArray> = vec![];
             for l in 0..bitstream.num_layers() {
@@ -276,6 +298,133 @@ fn encode_and_construct_separate<'a>(
     }
 }
 
+#[no_mangle]
+pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_encodeFrameRGBA0<'a>(
+    mut env: JNIEnv<'a>,
+    _: JClass<'a>,
+    ptr: jlong,
+    width: jint,
+    height: jint,
+    rgba: JByteArray<'a>,
+    timestamp: jlong
+) -> JObject<'a> {
+    encode_and_construct_frame(&mut env, ptr, width, height, rgba, timestamp, |yuv, data, dims| {
+        yuv.read_rgb(RgbaSliceU8::new(data, dims))
+    })
+}
+
+#[no_mangle]
+pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_encodeFrameRGB0<'a>(
+    mut env: JNIEnv<'a>,
+    _: JClass<'a>,
+    ptr: jlong,
+    width: jint,
+    height: jint,
+    rgb: JByteArray<'a>,
+    timestamp: jlong
+) -> JObject<'a> {
+    encode_and_construct_frame(&mut env, ptr, width, height, rgb, timestamp, |yuv, data, dims| {
+        yuv.read_rgb(RgbSliceU8::new(data, dims))
+    })
+}
+
+fn encode_and_construct_frame<'a>(
+    env: &mut JNIEnv<'a>,
+    ptr: jlong,
+    width: jint,
+    height: jint,
+    data: JByteArray<'a>,
+    timestamp: jlong,
+    read_fn: ReadRgbFn
+) -> JObject<'a> {
+    let instance = unsafe { &mut *(ptr as *mut EncoderInstance) };
+    let bytes = match env.convert_byte_array(data) {
+        Ok(b) => b,
+        Err(err) => {
+            throw_runtime_exception(env, format!("Failed to convert java array: {}", err));
+            return JObject::null();
+        }
+    };
+    let (encoder, yuv_source) = instance.prepare(&bytes, (width as usize, height as usize), read_fn);
+    let bitstream = match encoder.encode_at(yuv_source, Timestamp::from_millis(timestamp as u64)) {
+        Ok(b) => b,
+        Err(err) => {
+            throw_encoder_exception(env, format!("Failed to encode: {}", err));
+            return JObject::null();
+        }
+    };
+    let info = bitstream.raw_info();
+    let mut buffer: Vec<u8> = Vec::with_capacity(info.iFrameSizeInBytes.max(0) as usize);
+    let mut nal_offsets: Vec<jint> = vec![];
+    let mut nal_lengths: Vec<jint> = vec![];
+    let mut temporal_id: jint = 0;
+    let mut spatial_id: jint = 0;
+    for l in 0..bitstream.num_layers() {
+        let layer = bitstream.layer(l).unwrap();
+        if layer.is_video() {
+            temporal_id = layer.raw_info().uiTemporalId as jint;
+            spatial_id = layer.raw_info().uiSpatialId as jint;
+        }
+        for n in 0..layer.nal_count() {
+            let nal = layer.nal_unit(n).unwrap();
+            nal_offsets.push(buffer.len() as jint);
+            nal_lengths.push(nal.len() as jint);
+            buffer.extend_from_slice(nal);
+        }
+    }
+    let frame_type = info.eFrameType as jint;
+    let frame_timestamp = info.uiTimeStamp as jlong;
+    let data_array = match env.byte_array_from_slice(&buffer) {
+        Ok(arr) => arr,
+        Err(err) => {
+            throw_runtime_exception(env, format!("Failed to convert to java array: {}", err));
+            return JObject::null();
+        }
+    };
+    let offsets_array = match int_array_from_slice(env, &nal_offsets) {
+        Some(arr) => arr,
+        None => return JObject::null(),
+    };
+    let lengths_array = match int_array_from_slice(env, &nal_lengths) {
+        Some(arr) => arr,
+        None => return JObject::null(),
+    };
+    match env.new_object(
+        "ru/dimaskama/javah264/EncodedFrame",
+        "([B[I[IIIIJ)V",
+        &[
+            JValue::Object(&JObject::from(data_array)),
+            JValue::Object(&JObject::from(offsets_array)),
+            JValue::Object(&JObject::from(lengths_array)),
+            JValue::from(frame_type),
+            JValue::from(temporal_id),
+            JValue::from(spatial_id),
+            JValue::from(frame_timestamp),
+        ],
+    ) {
+        Ok(obj) => obj,
+        Err(err) => {
+            throw_runtime_exception(env, format!("Failed to create return object: {}", err));
+            JObject::null()
+        }
+    }
+}
+
+fn int_array_from_slice<'a>(env: &mut JNIEnv<'a>, slice: &[jint]) -> Option<JIntArray<'a>> {
+    let array = match env.new_int_array(slice.len() as jsize) {
+        Ok(arr) => arr,
+        Err(err) => {
+            throw_runtime_exception(env, format!("Failed to create java array: {}", err));
+            return None;
+        }
+    };
+    if let Err(err) = env.set_int_array_region(&array, 0, slice) {
+        throw_runtime_exception(env, format!("Failed to fill java array: {}", err));
+        return None;
+    }
+    Some(array)
+}
+
 #[no_mangle]
 pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_destroyEncoder0(
     _: JNIEnv,
@@ -284,7 +433,7 @@ pub extern "C" fn Java_ru_dimaskama_javah264_H264Encoder_destroyEncoder0(
 ) {
     if ptr != 0 {
         unsafe {
-            drop(Box::from_raw(ptr as *mut Encoder));
+            drop(Box::from_raw(ptr as *mut EncoderInstance));
         };
     }
 }
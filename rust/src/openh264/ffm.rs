@@ -0,0 +1,107 @@
+use std::slice;
+use openh264::formats::{RgbSliceU8, RgbaSliceU8};
+use crate::openh264::decoder::{decode_with_status, DecoderInstance, STATUS_ERROR};
+use crate::openh264::encoder::{EncoderInstance, ReadRgbFn};
+
+// Entry points for the Foreign Function & Memory API (Java 22+), see ru.dimaskama.javah264.H264Ffm.
+// Decoder and encoder pointers are the same boxed instances that are created through JNI.
+// Input and output are memory owned by the caller, nothing is allocated or copied on the way.
+
+/// Set in the decode result when the frame didn't fit into the output
+const DECODE_OUTPUT_TOO_SMALL: i64 = 1 << 8;
+/// Returned by javah264_encode when encoding has failed
+const ENCODE_ERROR: i64 = -1;
+
+unsafe fn input_slice<'a>(address: *const u8, length: i64) -> &'a [u8] {
+    if length <= 0 { &[] } else { slice::from_raw_parts(address, length as usize) }
+}
+
+unsafe fn output_slice<'a>(address: *mut u8, length: i64) -> &'a mut [u8] {
+    if length <= 0 { &mut [] } else { slice::from_raw_parts_mut(address, length as usize) }
+}
+
+/// Decodes the packet, writing the frame to `output`.
+/// Returns the decode status (see ru.dimaskama.javah264.DecodeStatus) in the lowest byte,
+/// DECODE_OUTPUT_TOO_SMALL if the frame didn't fit, frame width in bits 16..40 and height in bits 40..64
+#[no_mangle]
+pub unsafe extern "C" fn javah264_decode(
+    ptr: i64,
+    packet: *const u8,
+    packet_len: i64,
+    pixel_size: i32,
+    output: *mut u8,
+    output_len: i64
+) -> i64 {
+    let instance = &mut *(ptr as *mut DecoderInstance);
+    if pixel_size != 3 && pixel_size != 4 {
+        return STATUS_ERROR as i64;
+    }
+    let pixel_size = pixel_size as usize;
+    let packet = input_slice(packet, packet_len);
+    let output = output_slice(output, output_len);
+    let (status, frame) = decode_with_status(instance, packet, |p| {
+        let size = p.image_size(pixel_size);
+        let fits = size <= output.len();
+        if fits {
+            p.write_rgb(pixel_size, &mut output[..size]);
+        }
+        (p.width, p.height, fits)
+    });
+    match frame {
+        Some((width, height, fits)) => {
+            status as i64
+                | if fits { 0 } else { DECODE_OUTPUT_TOO_SMALL }
+                | (width as i64) << 16
+                | (height as i64) << 40
+        }
+        None => status as i64,
+    }
+}
+
+/// Encodes the image, writing the bitstream to `output`.
+/// Returns the bitstream length, ENCODE_ERROR, or ENCODE_ERROR minus the bitstream length if it didn't fit
+#[no_mangle]
+pub unsafe extern "C" fn javah264_encode(
+    ptr: i64,
+    width: i32,
+    height: i32,
+    image: *const u8,
+    pixel_size: i32,
+    output: *mut u8,
+    output_len: i64
+) -> i64 {
+    let instance = &mut *(ptr as *mut EncoderInstance);
+    let read_fn: ReadRgbFn = match pixel_size {
+        4 => |yuv, data, dims| yuv.read_rgb(RgbaSliceU8::new(data, dims)),
+        3 => |yuv, data, dims| yuv.read_rgb(RgbSliceU8::new(data, dims)),
+        _ => return ENCODE_ERROR,
+    };
+    let dims = (width as usize, height as usize);
+    let image = input_slice(image, (dims.0 * dims.1 * pixel_size as usize) as i64);
+    let output = output_slice(output, output_len);
+    let (encoder, yuv) = instance.prepare(image, dims, read_fn);
+    let bitstream = match encoder.encode(yuv) {
+        Ok(b) => b,
+        Err(_) => return ENCODE_ERROR,
+    };
+    let mut length = 0;
+    for l in 0..bitstream.num_layers() {
+        let layer = bitstream.layer(l).unwrap();
+        for n in 0..layer.nal_count() {
+            length += layer.nal_unit(n).unwrap().len();
+        }
+    }
+    if length > output.len() {
+        return ENCODE_ERROR - length as i64;
+    }
+    let mut position = 0;
+    for l in 0..bitstream.num_layers() {
+        let layer = bitstream.layer(l).unwrap();
+        for n in 0..layer.nal_count() {
+            let nal = layer.nal_unit(n).unwrap();
+            output[position..position + nal.len()].copy_from_slice(nal);
+            position += nal.len();
+        }
+    }
+    length as i64
+}
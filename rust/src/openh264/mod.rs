@@ -1,3 +1,4 @@
 pub mod encoder;
 pub mod decoder;
+pub mod ffm;
 mod exceptions;
\ No newline at end of file
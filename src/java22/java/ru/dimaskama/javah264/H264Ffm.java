@@ -0,0 +1,197 @@
+package ru.dimaskama.javah264;
+
+import org.jetbrains.annotations.Nullable;
+import ru.dimaskama.javah264.exception.EncoderException;
+import ru.dimaskama.javah264.exception.UnknownPlatformException;
+
+import java.io.IOException;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.util.Objects;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/// Decoding and encoding with caller-owned memory through the Foreign Function & Memory API. Java 22+ only.
+///
+/// The native code reads the input and writes the output in place, so nothing is copied
+/// or allocated per frame on the way, unlike the `byte[]` methods of [H264Decoder] and [H264Encoder],
+/// which go through JNI. Segments must be native (off-heap) and stay alive for the duration of the call.
+/// Status tracking, frame skipping and native memory accounting work the same as with the `byte[]` methods.
+///
+/// Like JNI calls, these calls pin the carrier thread when made from a virtual thread.
+/// Run with `--enable-native-access=ALL-UNNAMED` to avoid restricted method warnings
+public final class H264Ffm {
+
+    // See rust/src/openh264/ffm.rs
+    private static final long DECODE_OUTPUT_TOO_SMALL = 1L << 8;
+    private static final long ENCODE_ERROR = -1L;
+
+    private H264Ffm() {
+
+    }
+
+    /// Whether the native library has the FFM entry points and native access is allowed
+    public static boolean isAvailable() throws IOException, UnknownPlatformException {
+        OpenH264Lib.load();
+        return Handles.DECODE != null;
+    }
+
+    /// Decodes the Annex B packet into `output` as RGBA. Returns null if no frame was decoded,
+    /// see [H264Decoder#getLastStatus()].
+    ///
+    /// @param output must hold `width * height * 4` bytes of the decoded frame,
+    ///               otherwise the frame is dropped and [IllegalArgumentException] is thrown
+    @Nullable
+    public static Frame decodeRGBA(H264Decoder decoder, MemorySegment packet, MemorySegment output) {
+        return decode(decoder, packet, output, 4);
+    }
+
+    /// Decodes the Annex B packet into `output` as RGB. Returns null if no frame was decoded,
+    /// see [H264Decoder#getLastStatus()].
+    ///
+    /// @param output must hold `width * height * 3` bytes of the decoded frame,
+    ///               otherwise the frame is dropped and [IllegalArgumentException] is thrown
+    @Nullable
+    public static Frame decodeRGB(H264Decoder decoder, MemorySegment packet, MemorySegment output) {
+        return decode(decoder, packet, output, 3);
+    }
+
+    /// Encodes the RGBA image (`width * height * 4` bytes) into `output`. Returns the bitstream length
+    ///
+    /// @throws IllegalArgumentException if the bitstream didn't fit into `output`. The frame is dropped
+    public static long encodeRGBA(H264Encoder encoder, int width, int height, MemorySegment rgba, MemorySegment output) throws EncoderException {
+        return encode(encoder, width, height, rgba, output, 4);
+    }
+
+    /// Encodes the RGB image (`width * height * 3` bytes) into `output`. Returns the bitstream length
+    ///
+    /// @throws IllegalArgumentException if the bitstream didn't fit into `output`. The frame is dropped
+    public static long encodeRGB(H264Encoder encoder, int width, int height, MemorySegment rgb, MemorySegment output) throws EncoderException {
+        return encode(encoder, width, height, rgb, output, 3);
+    }
+
+    @Nullable
+    private static Frame decode(H264Decoder decoder, MemorySegment packet, MemorySegment output, int pixelSize) {
+        MethodHandle handle = checkAvailable(Handles.DECODE);
+        checkNative(packet, "packet");
+        checkNative(output, "output");
+        long result = decoder.decode(() -> containsKeyFrame(packet), pointer -> {
+            try {
+                return (long) handle.invokeExact(pointer, packet, packet.byteSize(), pixelSize, output, output.byteSize());
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to call native decode", e);
+            }
+        });
+        int width = (int) ((result >>> 16) & 0xFFFFFF);
+        int height = (int) (result >>> 40);
+        if (width == 0) {
+            return null;
+        }
+        decoder.trackMemory(width, height, pixelSize);
+        if ((result & DECODE_OUTPUT_TOO_SMALL) != 0) {
+            throw new IllegalArgumentException(String.format("Output of %d bytes is too small for a %dx%d frame", output.byteSize(), width, height));
+        }
+        return new Frame(width, height);
+    }
+
+    private static long encode(H264Encoder encoder, int width, int height, MemorySegment image, MemorySegment output, int pixelSize) throws EncoderException {
+        MethodHandle handle = checkAvailable(Handles.ENCODE);
+        checkNative(image, "image");
+        checkNative(output, "output");
+        long result = encoder.encode(width, height, pixelSize, image.byteSize(), pointer -> {
+            try {
+                return (long) handle.invokeExact(pointer, width, height, image, pixelSize, output, output.byteSize());
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to call native encode", e);
+            }
+        });
+        if (result == ENCODE_ERROR) {
+            throw new EncoderException("Failed to encode");
+        }
+        if (result < 0) {
+            throw new IllegalArgumentException(String.format("Output of %d bytes is too small for a bitstream of %d bytes", output.byteSize(), ENCODE_ERROR - result));
+        }
+        return result;
+    }
+
+    private static MethodHandle checkAvailable(@Nullable MethodHandle handle) {
+        if (handle == null) {
+            throw new UnsupportedOperationException("FFM bindings are not available, see H264Ffm.isAvailable()");
+        }
+        return handle;
+    }
+
+    // Heap segments can't be passed to the native code without blocking GC
+    private static void checkNative(MemorySegment segment, String name) {
+        Objects.requireNonNull(segment, name);
+        if (!segment.isNative()) {
+            throw new IllegalArgumentException(String.format("%s must be a native segment", name));
+        }
+    }
+
+    // Same as DecodeStatusTracker#containsKeyFrame(byte[])
+    private static boolean containsKeyFrame(MemorySegment packet) {
+        int zeros = 0;
+        for (long i = 0; i < packet.byteSize() - 1; i++) {
+            byte b = packet.get(JAVA_BYTE, i);
+            if (b == 0) {
+                zeros++;
+            } else {
+                if (b == 1 && zeros >= 2) {
+                    int type = packet.get(JAVA_BYTE, i + 1) & 0x1F;
+                    if (type == 5 || type == 7 || type == 8) {
+                        return true;
+                    }
+                }
+                zeros = 0;
+            }
+        }
+        return false;
+    }
+
+    /// Dimensions of the frame written to the output
+    public record Frame(int width, int height) {
+
+    }
+
+    // Resolved on first use, after the library is loaded by a decoder, an encoder or isAvailable()
+    private static final class Handles {
+
+        @Nullable
+        private static final MethodHandle DECODE;
+        @Nullable
+        private static final MethodHandle ENCODE;
+
+        static {
+            MethodHandle decode = null;
+            MethodHandle encode = null;
+            try {
+                // The library is loaded with System.load by this class loader
+                SymbolLookup lookup = SymbolLookup.loaderLookup();
+                Linker linker = Linker.nativeLinker();
+                decode = linker.downcallHandle(
+                        lookup.find("javah264_decode").orElseThrow(),
+                        FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG)
+                );
+                encode = linker.downcallHandle(
+                        lookup.find("javah264_encode").orElseThrow(),
+                        FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, JAVA_LONG)
+                );
+            } catch (RuntimeException e) {
+                // Natives without FFM entry points or native access is denied
+                decode = null;
+                encode = null;
+            }
+            DECODE = decode;
+            ENCODE = encode;
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+package ru.dimaskama.javah264;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru.dimaskama.javah264.exception.EncoderException;
+import ru.dimaskama.javah264.exception.UnknownPlatformException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class H264FfmTest {
+
+    @Test
+    @DisplayName("FFM decode matches JNI")
+    void decodeMatchesJni() throws IOException, UnknownPlatformException {
+        assertTrue(H264Ffm.isAvailable(), "FFM bindings are not available");
+        byte[] h264data = readTestStream();
+        for (int pixelSize : new int[]{4, 3}) {
+            int frames = 0;
+            try (Arena arena = Arena.ofConfined(); H264Decoder ffm = new H264Decoder(); H264Decoder jni = new H264Decoder()) {
+                MemorySegment output = arena.allocate(512 * 512 * pixelSize);
+                for (byte[] nalUnit : H264Decoder.nalUnits(h264data)) {
+                    MemorySegment packet = arena.allocateFrom(JAVA_BYTE, nalUnit);
+                    H264Ffm.Frame ffmFrame = pixelSize == 4 ? H264Ffm.decodeRGBA(ffm, packet, output) : H264Ffm.decodeRGB(ffm, packet, output);
+                    DecodeResult jniResult = pixelSize == 4 ? jni.decodeRGBA(nalUnit) : jni.decodeRGB(nalUnit);
+                    assertEquals(jni.getLastStatus(), ffm.getLastStatus());
+                    if (jniResult == null) {
+                        assertNull(ffmFrame);
+                    } else {
+                        assertNotNull(ffmFrame);
+                        assertEquals(jniResult.getWidth(), ffmFrame.width());
+                        assertEquals(jniResult.getHeight(), ffmFrame.height());
+                        assertArrayEquals(jniResult.getImage(), output.toArray(JAVA_BYTE));
+                        frames++;
+                    }
+                }
+                assertEquals(jni.getNativeMemoryUsage(), ffm.getNativeMemoryUsage());
+            }
+            assertTrue(frames > 0);
+        }
+    }
+
+    @Test
+    @DisplayName("FFM encode matches JNI")
+    void encodeMatchesJni() throws IOException, UnknownPlatformException, EncoderException {
+        List<DecodeResult> images = decodeTestStream();
+        // Single-threaded, so both encoders produce the same bitstream
+        try (Arena arena = Arena.ofConfined();
+             H264Encoder ffm = H264Encoder.builder().multipleThreadIdc((short) 1).build();
+             H264Encoder jni = H264Encoder.builder().multipleThreadIdc((short) 1).build()) {
+            MemorySegment image = arena.allocate(512 * 512 * 4);
+            MemorySegment output = arena.allocate(512 * 512 * 4);
+            for (DecodeResult decodeResult : images) {
+                MemorySegment.copy(decodeResult.getImage(), 0, image, JAVA_BYTE, 0L, decodeResult.getImage().length);
+                long length = H264Ffm.encodeRGBA(ffm, decodeResult.getWidth(), decodeResult.getHeight(), image, output);
+                assertArrayEquals(
+                        jni.encodeRGBA(decodeResult.getWidth(), decodeResult.getHeight(), decodeResult.getImage()),
+                        output.asSlice(0L, length).toArray(JAVA_BYTE)
+                );
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Output too small")
+    void outputTooSmall() throws IOException, UnknownPlatformException, EncoderException {
+        DecodeResult first = decodeTestStream().get(0);
+        try (Arena arena = Arena.ofConfined(); H264Encoder encoder = new H264Encoder(); H264Decoder decoder = new H264Decoder()) {
+            MemorySegment image = arena.allocateFrom(JAVA_BYTE, first.getImage());
+            assertThrows(IllegalArgumentException.class, () -> H264Ffm.encodeRGBA(encoder, first.getWidth(), first.getHeight(), image, arena.allocate(4)));
+
+            byte[] bitstream;
+            // The dropped frame was the IDR frame, so a new encoder is used
+            try (H264Encoder keyFrameEncoder = new H264Encoder()) {
+                bitstream = keyFrameEncoder.encodeRGBA(first.getWidth(), first.getHeight(), first.getImage());
+            }
+            MemorySegment packet = arena.allocateFrom(JAVA_BYTE, bitstream);
+            assertThrows(IllegalArgumentException.class, () -> H264Ffm.decodeRGBA(decoder, packet, arena.allocate(16)));
+            assertEquals(DecodeStatus.Frame, decoder.getLastStatus());
+        }
+    }
+
+    @Test
+    @DisplayName("Heap segments are rejected")
+    void heapSegments() throws IOException, UnknownPlatformException {
+        try (Arena arena = Arena.ofConfined(); H264Decoder decoder = new H264Decoder()) {
+            MemorySegment heap = MemorySegment.ofArray(new byte[16]);
+            assertThrows(IllegalArgumentException.class, () -> H264Ffm.decodeRGBA(decoder, heap, arena.allocate(16)));
+            assertThrows(IllegalArgumentException.class, () -> H264Ffm.decodeRGBA(decoder, arena.allocate(16), heap));
+        }
+    }
+
+    private static List<DecodeResult> decodeTestStream() throws IOException, UnknownPlatformException {
+        List<DecodeResult> images = new ArrayList<>();
+        try (H264Decoder decoder = new H264Decoder()) {
+            for (byte[] nalUnit : H264Decoder.nalUnits(readTestStream())) {
+                DecodeResult decodeResult = decoder.decodeRGBA(nalUnit);
+                if (decodeResult != null) {
+                    images.add(decodeResult);
+                }
+            }
+        }
+        assertFalse(images.isEmpty());
+        return images;
+    }
+
+    private static byte[] readTestStream() throws IOException {
+        try (InputStream in = H264FfmTest.class.getClassLoader().getResourceAsStream("multi_512x512.h264")) {
+            return Objects.requireNonNull(in).readAllBytes();
+        }
+    }
+
+}
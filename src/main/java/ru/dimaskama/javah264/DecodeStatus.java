@@ -0,0 +1,32 @@
+package ru.dimaskama.javah264;
+
+/// Outcome of the last decode operation of [H264Decoder]
+public enum DecodeStatus {
+
+    /// A frame was decoded
+    Frame,
+    /// No frame yet, more data is needed
+    NoFrame,
+    /// A frame was decoded, but parts of it were lost or corrupted and had to be concealed.
+    /// The concealed frame is returned. See [H264Decoder.Builder#errorConcealment(H264Decoder.ErrorConcealment)]
+    Concealed,
+    /// Reference frames were lost, so the stream cannot be decoded correctly until the next IDR frame
+    ReferenceLost,
+    /// The bitstream is corrupted and could not be decoded
+    Error,
+    /// The packet wasn't decoded, because the decoder is waiting for an IDR frame.
+    /// See [H264Decoder.Builder#skipUntilKeyFrame(boolean)]
+    Skipped;
+
+    private static final DecodeStatus[] VALUES = values();
+
+    static DecodeStatus fromNative(int value) {
+        return value >= 0 && value < VALUES.length ? VALUES[value] : Error;
+    }
+
+    /// Whether the decoded picture is broken until the next IDR frame
+    public boolean isDamaged() {
+        return this == Concealed || this == ReferenceLost || this == Error;
+    }
+
+}
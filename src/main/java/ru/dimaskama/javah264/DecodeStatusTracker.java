@@ -0,0 +1,87 @@
+package ru.dimaskama.javah264;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.BooleanSupplier;
+
+/// Tracks decode statuses of an [H264Decoder]: notifies the [ReferenceLossListener] once per loss
+/// and decides which packets to skip while waiting for a key frame
+final class DecodeStatusTracker {
+
+    @Nullable
+    private final ReferenceLossListener referenceLossListener;
+    private final boolean skipUntilKeyFrame;
+    private DecodeStatus lastStatus = DecodeStatus.NoFrame;
+    // Cleared by the first clean frame, re-arming the listener
+    private boolean referenceLost;
+    // Cleared as soon as a key frame is passed to the decoder, whatever it decodes to
+    private boolean waitingForKeyFrame;
+
+    DecodeStatusTracker(@Nullable ReferenceLossListener referenceLossListener, boolean skipUntilKeyFrame) {
+        this.referenceLossListener = referenceLossListener;
+        this.skipUntilKeyFrame = skipUntilKeyFrame;
+    }
+
+    /// Returns false if the packet should be skipped
+    boolean beforeDecode(byte[] packet) {
+        return !waitingForKeyFrame || keyFramePassed(containsKeyFrame(packet));
+    }
+
+    /// Same as [#beforeDecode(byte[])], for packets that aren't on the heap
+    boolean beforeDecode(BooleanSupplier containsKeyFrame) {
+        return !waitingForKeyFrame || keyFramePassed(containsKeyFrame.getAsBoolean());
+    }
+
+    private boolean keyFramePassed(boolean keyFrame) {
+        if (!keyFrame) {
+            lastStatus = DecodeStatus.Skipped;
+            return false;
+        }
+        waitingForKeyFrame = false;
+        return true;
+    }
+
+    void afterDecode(H264Decoder decoder, DecodeStatus status) {
+        lastStatus = status;
+        if (status.isDamaged()) {
+            if (!referenceLost) {
+                referenceLost = true;
+                waitingForKeyFrame = skipUntilKeyFrame;
+                if (referenceLossListener != null) {
+                    referenceLossListener.onReferenceLost(decoder, status);
+                }
+            }
+        } else if (status == DecodeStatus.Frame) {
+            referenceLost = false;
+        }
+    }
+
+    DecodeStatus getLastStatus() {
+        return lastStatus;
+    }
+
+    boolean isReferenceLost() {
+        return referenceLost;
+    }
+
+    // Whether the Annex B packet contains an IDR slice or parameter sets, which are needed to decode it
+    static boolean containsKeyFrame(byte[] packet) {
+        int zeros = 0;
+        for (int i = 0; i < packet.length - 1; i++) {
+            byte b = packet[i];
+            if (b == 0) {
+                zeros++;
+            } else {
+                if (b == 1 && zeros >= 2) {
+                    int type = packet[i + 1] & 0x1F;
+                    if (type == 5 || type == 7 || type == 8) {
+                        return true;
+                    }
+                }
+                zeros = 0;
+            }
+        }
+        return false;
+    }
+
+}
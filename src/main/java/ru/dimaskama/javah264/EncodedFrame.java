@@ -0,0 +1,107 @@
+package ru.dimaskama.javah264;
+
+import java.util.Arrays;
+
+/// Encoded frame with the metadata reported by OpenH264, so the bitstream doesn't have to be re-parsed
+public class EncodedFrame {
+
+    private final byte[] data;
+    private final int[] nalOffsets;
+    private final int[] nalLengths;
+    private final FrameType frameType;
+    private final int temporalId;
+    private final int spatialId;
+    private final long timestamp;
+
+    public EncodedFrame(byte[] data, int[] nalOffsets, int[] nalLengths, FrameType frameType, int temporalId, int spatialId, long timestamp) {
+        this.data = data;
+        this.nalOffsets = nalOffsets;
+        this.nalLengths = nalLengths;
+        this.frameType = frameType;
+        this.temporalId = temporalId;
+        this.spatialId = spatialId;
+        this.timestamp = timestamp;
+    }
+
+    // Called from the native code
+    EncodedFrame(byte[] data, int[] nalOffsets, int[] nalLengths, int frameType, int temporalId, int spatialId, long timestamp) {
+        this(data, nalOffsets, nalLengths, FrameType.fromNative(frameType), temporalId, spatialId, timestamp);
+    }
+
+    /// The whole bitstream of the frame (all NAL units, with start codes)
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getSize() {
+        return data.length;
+    }
+
+    public int getNalCount() {
+        return nalOffsets.length;
+    }
+
+    /// Offsets of the NAL units (including start codes) in [#getData()]
+    public int[] getNalOffsets() {
+        return nalOffsets;
+    }
+
+    /// Lengths of the NAL units (including start codes)
+    public int[] getNalLengths() {
+        return nalLengths;
+    }
+
+    /// Copies the NAL unit at the specified index
+    public byte[] getNalUnit(int index) {
+        return Arrays.copyOfRange(data, nalOffsets[index], nalOffsets[index] + nalLengths[index]);
+    }
+
+    public FrameType getFrameType() {
+        return frameType;
+    }
+
+    public boolean isKeyFrame() {
+        return frameType == FrameType.IDR;
+    }
+
+    /// Whether the frame was skipped by the rate control. Skipped frames have no data
+    public boolean isSkipped() {
+        return frameType == FrameType.Skip;
+    }
+
+    /// Temporal layer of the video NAL units
+    public int getTemporalId() {
+        return temporalId;
+    }
+
+    /// Spatial layer of the video NAL units
+    public int getSpatialId() {
+        return spatialId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /// Type of the encoded frame. Constants are in the order of OpenH264 `EVideoFrameType`
+    public enum FrameType {
+
+        Invalid,
+        /// Instantaneous decoder refresh frame
+        IDR,
+        I,
+        P,
+        /// Frame was skipped by the rate control
+        Skip,
+        /// Frame with both I and P slices
+        IPMixed;
+
+        private static final FrameType[] VALUES = values();
+
+        static FrameType fromNative(int value) {
+            return value >= 0 && value < VALUES.length ? VALUES[value] : Invalid;
+        }
+
+    }
+
+}
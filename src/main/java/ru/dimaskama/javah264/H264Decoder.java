@@ -6,19 +6,38 @@ import ru.dimaskama.javah264.exception.UnknownPlatformException;
 import java.io.IOException;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongUnaryOperator;
 
 public class H264Decoder implements AutoCloseable {
 
     private final AtomicBoolean closed = new AtomicBoolean();
     private final long pointer;
+    private final NativeMemory.Reservation memory;
+    private final DecodeStatusTracker statusTracker;
+    private final int[] status = new int[1];
 
     public H264Decoder() throws IOException, UnknownPlatformException {
         this(new Builder());
     }
 
     public H264Decoder(Builder builder) throws IOException, UnknownPlatformException {
+        // Decoded frames are already allocated, so the budget can only be applied here
+        if (builder.expectedWidth == 0 && NativeMemory.getBudget() >= 0L) {
+            throw new IllegalArgumentException("Expected dimensions must be set while a native memory budget is set");
+        }
         OpenH264Lib.load();
-        this.pointer = createDecoder0(builder.flushBehavior.ordinal());
+        this.memory = NativeMemory.reserve("H264Decoder", builder.expectedWidth != 0 ? NativeMemory.estimateDecoder(builder.expectedWidth, builder.expectedHeight, 4) : 0L);
+        try {
+            this.pointer = createDecoder0(
+                    builder.flushBehavior.ordinal(),
+                    builder.errorConcealment != null ? builder.errorConcealment.ordinal() : -1
+            );
+        } catch (RuntimeException e) {
+            memory.release();
+            throw e;
+        }
+        this.statusTracker = new DecodeStatusTracker(builder.referenceLossListener, builder.skipUntilKeyFrame);
     }
 
     public static Builder builder() {
@@ -27,24 +46,81 @@ public class H264Decoder implements AutoCloseable {
 
     @Nullable
     public DecodeResult decodeRGBA(byte[] packet) {
-        assertNotClosed();
-        return decodeRGBA0(pointer, Objects.requireNonNull(packet, "packet"));
+        return decode(packet, 4);
     }
 
     @Nullable
     public DecodeResult decodeRGB(byte[] packet) {
+        return decode(packet, 3);
+    }
+
+    @Nullable
+    private DecodeResult decode(byte[] packet, int pixelSize) {
         assertNotClosed();
-        return decodeRGB0(pointer, Objects.requireNonNull(packet, "packet"));
+        Objects.requireNonNull(packet, "packet");
+        if (!statusTracker.beforeDecode(packet)) {
+            return null;
+        }
+        DecodeResult result = pixelSize == 4 ? decodeRGBA0(pointer, packet, status) : decodeRGB0(pointer, packet, status);
+        statusTracker.afterDecode(this, DecodeStatus.fromNative(status[0]));
+        if (result != null) {
+            trackMemory(result.getWidth(), result.getHeight(), pixelSize);
+        }
+        return result;
+    }
+
+    // Decode through the FFM bindings (H264Ffm on Java 22+). `decode` gets the native pointer
+    // and returns the native result with the DecodeStatus ordinal in the lowest byte
+    long decode(BooleanSupplier containsKeyFrame, LongUnaryOperator decode) {
+        assertNotClosed();
+        if (!statusTracker.beforeDecode(containsKeyFrame)) {
+            return DecodeStatus.Skipped.ordinal();
+        }
+        long result = decode.applyAsLong(pointer);
+        statusTracker.afterDecode(this, DecodeStatus.fromNative((int) (result & 0xFF)));
+        return result;
     }
 
     public DecodeResult[] flushRemainingRGBA() {
         assertNotClosed();
-        return flushRemainingRGBA0(pointer);
+        DecodeResult[] results = flushRemainingRGBA0(pointer, status);
+        statusTracker.afterDecode(this, DecodeStatus.fromNative(status[0]));
+        if (results.length != 0) {
+            DecodeResult last = results[results.length - 1];
+            trackMemory(last.getWidth(), last.getHeight(), 4);
+        }
+        return results;
     }
 
     public DecodeResult[] flushRemainingRGB() {
         assertNotClosed();
-        return flushRemainingRGB0(pointer);
+        DecodeResult[] results = flushRemainingRGB0(pointer, status);
+        statusTracker.afterDecode(this, DecodeStatus.fromNative(status[0]));
+        if (results.length != 0) {
+            DecodeResult last = results[results.length - 1];
+            trackMemory(last.getWidth(), last.getHeight(), 3);
+        }
+        return results;
+    }
+
+    /// Status of the last decode or flush operation, e.g. to tell "no frame yet" from a corrupted stream
+    public DecodeStatus getLastStatus() {
+        return statusTracker.getLastStatus();
+    }
+
+    /// Whether the stream is damaged and no clean frame has been decoded since
+    public boolean isReferenceLost() {
+        return statusTracker.isReferenceLost();
+    }
+
+    /// Estimated native memory held by this decoder, in bytes. See [NativeMemory]
+    public long getNativeMemoryUsage() {
+        return memory.getBytes();
+    }
+
+    // The frame is already decoded, so growth is recorded without applying the NativeMemory budget
+    void trackMemory(int width, int height, int pixelSize) {
+        memory.record(NativeMemory.estimateDecoder(width, height, pixelSize));
     }
 
     private void assertNotClosed() {
@@ -57,6 +133,7 @@ public class H264Decoder implements AutoCloseable {
     public void close() {
         if (closed.compareAndSet(false, true)) {
             destroyDecoder0(pointer);
+            memory.release();
         }
     }
 
@@ -66,15 +143,15 @@ public class H264Decoder implements AutoCloseable {
         return nalUnits0(h264data);
     }
 
-    private static native long createDecoder0(int flushBehavior) throws IOException;
+    private static native long createDecoder0(int flushBehavior, int errorConcealment) throws IOException;
 
-    private static native DecodeResult decodeRGBA0(long pointer, byte[] packet);
+    private static native DecodeResult decodeRGBA0(long pointer, byte[] packet, int[] status);
 
-    private static native DecodeResult decodeRGB0(long pointer, byte[] packet);
+    private static native DecodeResult decodeRGB0(long pointer, byte[] packet, int[] status);
 
-    public static native DecodeResult[] flushRemainingRGBA0(long pointer);
+    public static native DecodeResult[] flushRemainingRGBA0(long pointer, int[] status);
 
-    public static native DecodeResult[] flushRemainingRGB0(long pointer);
+    public static native DecodeResult[] flushRemainingRGB0(long pointer, int[] status);
 
     private static native void destroyDecoder0(long pointer);
 
@@ -83,6 +160,13 @@ public class H264Decoder implements AutoCloseable {
     public static class Builder {
 
         private FlushBehavior flushBehavior = FlushBehavior.Auto;
+        @Nullable
+        private ErrorConcealment errorConcealment = null;
+        @Nullable
+        private ReferenceLossListener referenceLossListener = null;
+        private boolean skipUntilKeyFrame = false;
+        private int expectedWidth = 0;
+        private int expectedHeight = 0;
 
         private Builder() {
 
@@ -93,6 +177,33 @@ public class H264Decoder implements AutoCloseable {
             return this;
         }
 
+        /// OpenH264 default is used if not set
+        public Builder errorConcealment(ErrorConcealment value) {
+            this.errorConcealment = value;
+            return this;
+        }
+
+        public Builder referenceLossListener(ReferenceLossListener value) {
+            this.referenceLossListener = value;
+            return this;
+        }
+
+        /// Don't decode packets after a reference loss until one with an IDR frame (or parameter sets) arrives.
+        /// Saves decoding frames that would be broken anyway.
+        /// Decoding resumes once such packet is passed to the decoder, even if it doesn't produce a clean frame
+        public Builder skipUntilKeyFrame(boolean value) {
+            this.skipUntilKeyFrame = value;
+            return this;
+        }
+
+        /// Frame dimensions the decoder is expected to work with.
+        /// Used to reserve native memory up front. Required while a budget is set in [NativeMemory]
+        public Builder expectedDimensions(int width, int height) {
+            this.expectedWidth = width;
+            this.expectedHeight = height;
+            return this;
+        }
+
         public H264Decoder build() throws IOException, UnknownPlatformException {
             return new H264Decoder(this);
         }
@@ -118,4 +229,23 @@ public class H264Decoder implements AutoCloseable {
 
     }
 
+    /// How OpenH264 conceals lost or corrupted parts of frames.
+    /// Constants are in the order of OpenH264 `ERROR_CON_IDC`
+    public enum ErrorConcealment {
+
+        /// No concealment, damaged frames are not output
+        Disable,
+        /// Copies the whole previous frame
+        FrameCopy,
+        /// Copies the lost slices from the previous frame
+        SliceCopy,
+        FrameCopyCrossIdr,
+        SliceCopyCrossIdr,
+        SliceCopyCrossIdrFreezeResChange,
+        /// Copies the lost slices using motion vectors of the neighbours
+        SliceMvCopyCrossIdr,
+        SliceMvCopyCrossIdrFreezeResChange
+
+    }
+
 }
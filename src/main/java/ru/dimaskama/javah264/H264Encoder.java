@@ -6,11 +6,13 @@ import ru.dimaskama.javah264.exception.UnknownPlatformException;
 
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongUnaryOperator;
 
 public class H264Encoder implements AutoCloseable {
 
     private final AtomicBoolean closed = new AtomicBoolean();
     private final long pointer;
+    private final NativeMemory.Reservation memory;
 
     public H264Encoder() throws IOException, UnknownPlatformException {
         this(new Builder());
@@ -18,26 +20,32 @@ public class H264Encoder implements AutoCloseable {
 
     public H264Encoder(Builder builder) throws IOException, UnknownPlatformException {
         OpenH264Lib.load();
-        this.pointer = createEncoder0(
-                builder.enableSkipFrame,
-                builder.targetBitrate,
-                builder.maxFrameRate,
-                builder.rateControlMode.ordinal(),
-                builder.spsPpsStrategy.ordinal(),
-                builder.multipleThreadIdc,
-                builder.usageType.ordinal(),
-                builder.maxSliceLen != null ? builder.maxSliceLen : -1,
-                builder.profile != null ? builder.profile.ordinal() : -1,
-                builder.level != null ? builder.level.ordinal() : -1,
-                builder.complexity.ordinal(),
-                builder.minQp,
-                builder.maxQp,
-                builder.sceneChangeDetect,
-                builder.adaptiveQuantization,
-                builder.backgroundDetection,
-                builder.longTermReference,
-                builder.intraFramePeriod
-        );
+        this.memory = NativeMemory.reserve("H264Encoder", builder.expectedWidth != 0 ? NativeMemory.estimateEncoder(builder.expectedWidth, builder.expectedHeight, 4) : 0L);
+        try {
+            this.pointer = createEncoder0(
+                    builder.enableSkipFrame,
+                    builder.targetBitrate,
+                    builder.maxFrameRate,
+                    builder.rateControlMode.ordinal(),
+                    builder.spsPpsStrategy.ordinal(),
+                    builder.multipleThreadIdc,
+                    builder.usageType.ordinal(),
+                    builder.maxSliceLen != null ? builder.maxSliceLen : -1,
+                    builder.profile != null ? builder.profile.ordinal() : -1,
+                    builder.level != null ? builder.level.ordinal() : -1,
+                    builder.complexity.ordinal(),
+                    builder.minQp,
+                    builder.maxQp,
+                    builder.sceneChangeDetect,
+                    builder.adaptiveQuantization,
+                    builder.backgroundDetection,
+                    builder.longTermReference,
+                    builder.intraFramePeriod
+            );
+        } catch (RuntimeException e) {
+            memory.release();
+            throw e;
+        }
     }
 
     public static H264Encoder.Builder builder() {
@@ -47,35 +55,72 @@ public class H264Encoder implements AutoCloseable {
     public byte[] encodeRGBA(int width, int height, byte[] rgba) throws EncoderException {
         assertNotClosed();
         checkDims(width, height, 4, rgba.length);
+        trackMemory(width, height, 4);
         return encodeRGBA0(pointer, width, height, rgba);
     }
 
     public byte[] encodeRGB(int width, int height, byte[] rgb) throws EncoderException {
         assertNotClosed();
         checkDims(width, height, 3, rgb.length);
+        trackMemory(width, height, 3);
         return encodeRGB0(pointer, width, height, rgb);
     }
 
     public byte[][] encodeSeparateRGBA(int width, int height, byte[] rgba) throws EncoderException {
         assertNotClosed();
         checkDims(width, height, 4, rgba.length);
+        trackMemory(width, height, 4);
         return encodeSeparateRGBA0(pointer, width, height, rgba);
     }
 
     public byte[][] encodeSeparateRGB(int width, int height, byte[] rgb) throws EncoderException {
         assertNotClosed();
         checkDims(width, height, 3, rgb.length);
+        trackMemory(width, height, 3);
         return encodeSeparateRGB0(pointer, width, height, rgb);
     }
 
-    private void checkDims(int width, int height, int pixelLen, int dataLength) {
+    /// Encodes the frame, reporting its metadata
+    ///
+    /// @param timestamp frame timestamp in milliseconds
+    public EncodedFrame encodeFrameRGBA(int width, int height, byte[] rgba, long timestamp) throws EncoderException {
+        assertNotClosed();
+        checkDims(width, height, 4, rgba.length);
+        trackMemory(width, height, 4);
+        return encodeFrameRGBA0(pointer, width, height, rgba, timestamp);
+    }
+
+    /// Encodes the frame, reporting its metadata
+    ///
+    /// @param timestamp frame timestamp in milliseconds
+    public EncodedFrame encodeFrameRGB(int width, int height, byte[] rgb, long timestamp) throws EncoderException {
+        assertNotClosed();
+        checkDims(width, height, 3, rgb.length);
+        trackMemory(width, height, 3);
+        return encodeFrameRGB0(pointer, width, height, rgb, timestamp);
+    }
+
+    // Encode through the FFM bindings (H264Ffm on Java 22+). `encode` gets the native pointer
+    long encode(int width, int height, int pixelLen, long dataLength, LongUnaryOperator encode) {
+        assertNotClosed();
+        checkDims(width, height, pixelLen, dataLength);
+        trackMemory(width, height, pixelLen);
+        return encode.applyAsLong(pointer);
+    }
+
+    /// Estimated native memory held by this encoder, in bytes. See [NativeMemory]
+    public long getNativeMemoryUsage() {
+        return memory.getBytes();
+    }
+
+    private void checkDims(int width, int height, int pixelLen, long dataLength) {
         if (width < 16) {
             throw new IllegalArgumentException("Width cannot be < 16: " + width);
         }
         if (height < 16) {
             throw new IllegalArgumentException("Height cannot be < 16: " + height);
         }
-        if (width * height * pixelLen != dataLength) {
+        if ((long) width * height * pixelLen != dataLength) {
             throw new IllegalArgumentException("width * height * " + pixelLen + " != image data length");
         }
         if ((width & 1) != 0) {
@@ -86,6 +131,11 @@ public class H264Encoder implements AutoCloseable {
         }
     }
 
+    // Growth is subject to the NativeMemory budget, so this may throw or block
+    private void trackMemory(int width, int height, int pixelLen) {
+        memory.resize(NativeMemory.estimateEncoder(width, height, pixelLen));
+    }
+
     private void assertNotClosed() {
         if (closed.get()) {
             throw new IllegalStateException("This H264Encoder instance is closed!");
@@ -96,6 +146,7 @@ public class H264Encoder implements AutoCloseable {
     public void close() {
         if (closed.compareAndSet(false, true)) {
             destroyEncoder0(pointer);
+            memory.release();
         }
     }
 
@@ -128,6 +179,10 @@ public class H264Encoder implements AutoCloseable {
 
     private static native byte[][] encodeSeparateRGB0(long pointer, int width, int height, byte[] rgb) throws EncoderException;
 
+    private static native EncodedFrame encodeFrameRGBA0(long pointer, int width, int height, byte[] rgba, long timestamp) throws EncoderException;
+
+    private static native EncodedFrame encodeFrameRGB0(long pointer, int width, int height, byte[] rgb, long timestamp) throws EncoderException;
+
     private static native void destroyEncoder0(long pointer);
 
     public static class Builder {
@@ -153,6 +208,8 @@ public class H264Encoder implements AutoCloseable {
         private boolean backgroundDetection = true;
         private boolean longTermReference = false;
         private int intraFramePeriod = 0;
+        private int expectedWidth = 0;
+        private int expectedHeight = 0;
 
         private Builder() {
 
@@ -193,6 +250,7 @@ public class H264Encoder implements AutoCloseable {
             return this;
         }
 
+        /// Maximum slice size in bytes. For RTP, see [ru.dimaskama.javah264.rtp.H264RtpPacketizer#getMaxPayloadSize()]
         public Builder maxSliceLen(int value) {
             this.maxSliceLen = value;
             return this;
@@ -248,6 +306,14 @@ public class H264Encoder implements AutoCloseable {
             return this;
         }
 
+        /// Frame dimensions the encoder is expected to work with.
+        /// Used to reserve native memory up front, when a budget is set in [NativeMemory]
+        public Builder expectedDimensions(int width, int height) {
+            this.expectedWidth = width;
+            this.expectedHeight = height;
+            return this;
+        }
+
         public H264Encoder build() throws IOException, UnknownPlatformException {
             return new H264Encoder(this);
         }
@@ -1,17 +1,29 @@
 package ru.dimaskama.javah264;
 
+import org.jetbrains.annotations.Nullable;
 import ru.dimaskama.javah264.exception.UnknownPlatformException;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 
 class LibraryLoader {
 
+    /// Path to an already installed native library. If set, nothing is extracted from the jar
+    static final String LIBRARY_PATH_PROPERTY = "javah264.library.path";
+    /// Directory to extract the native library to. Defaults to java.io.tmpdir
+    static final String CACHE_DIR_PROPERTY = "javah264.cache.dir";
+
+    // Generated by the nativesChecksums gradle task
+    private static final String CHECKSUMS_RESOURCE_PATH = "natives/checksums.properties";
+
     private static final String OS_NAME = System.getProperty("os.name").toLowerCase();
     private static final String OS_ARCH = System.getProperty("os.arch").toLowerCase();
 
@@ -87,40 +99,97 @@ class LibraryLoader {
         return String.format("natives/%s/%s", getNativeFolderName(), getLibraryName(libName));
     }
 
-    private static File getTempDir() {
-        return new File(System.getProperty("java.io.tmpdir"));
+    private static File getCacheDir() {
+        String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+        return new File(cacheDir != null ? cacheDir : System.getProperty("java.io.tmpdir"));
     }
 
     public static void load(String libraryName) throws UnknownPlatformException, IOException {
+        String libraryPath = System.getProperty(LIBRARY_PATH_PROPERTY);
+        if (libraryPath != null) {
+            // Already installed library, nothing to extract
+            loadFile(libraryName, new File(libraryPath));
+            return;
+        }
+
         String resourcePath = getResourcePath(libraryName);
 
-        String md5 = null;
-        try (InputStream in = getResource(resourcePath)) {
-            if (in == null) {
-                throw new UnknownPlatformException(String.format("Could not find %s natives for platform %s", libraryName, getNativeFolderName()));
+        String md5 = getBuildChecksum(resourcePath);
+        if (md5 == null) {
+            // No checksums manifest, e.g. natives were put on the classpath without the build. Compute it here
+            try (InputStream in = getResource(resourcePath)) {
+                if (in == null) {
+                    throw new UnknownPlatformException(String.format("Could not find %s natives for platform %s", libraryName, getNativeFolderName()));
+                }
+                md5 = checksum(in);
+            } catch (NoSuchAlgorithmException ignored) {
             }
-            md5 = checksum(in);
-        } catch (Exception ignored) {
         }
 
-        File tempDir = new File(getTempDir(), md5 == null ? libraryName : String.format("%s-%s", libraryName, md5));
-        tempDir.mkdirs();
+        File libraryDir = new File(getCacheDir(), md5 == null ? libraryName : String.format("%s-%s", libraryName, md5));
+        File libraryFile = new File(libraryDir, getLibraryName(libraryName));
+
+        if (!libraryFile.isFile()) {
+            extract(libraryName, resourcePath, libraryFile);
+        }
 
-        File tempFile = new File(tempDir, getLibraryName(libraryName));
+        loadFile(libraryName, libraryFile);
+    }
+
+    private static void loadFile(String libraryName, File file) throws UnknownPlatformException {
+        try {
+            System.load(file.getAbsolutePath());
+        } catch (UnsatisfiedLinkError e) {
+            throw new UnknownPlatformException(String.format("Could not load %s natives from %s", libraryName, file), e);
+        }
+    }
 
-        if (!tempFile.exists()) {
+    // Extracts to a temp file first and then renames it, so other processes never see a partially written library
+    private static void extract(String libraryName, String resourcePath, File target) throws UnknownPlatformException, IOException {
+        File dir = target.getParentFile();
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException(String.format("Could not create directory %s", dir));
+        }
+        Path tempFile = Files.createTempFile(dir.toPath(), target.getName(), ".tmp");
+        try {
             try (InputStream in = getResource(resourcePath)) {
                 if (in == null) {
                     throw new UnknownPlatformException(String.format("Could not find %s natives for platform %s", libraryName, getNativeFolderName()));
                 }
-                Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // Temp files are owner-only, but the cache directory is shared with other users' JVMs
+            if (!tempFile.toFile().setReadable(true, false)) {
+                throw new IOException(String.format("Could not make %s readable", tempFile));
+            }
+            try {
+                try {
+                    Files.move(tempFile, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                // Another process has extracted the same library first (and may be holding it open)
+                if (!target.isFile()) {
+                    throw e;
+                }
             }
+        } finally {
+            Files.deleteIfExists(tempFile);
         }
+    }
 
-        try {
-            System.load(tempFile.getAbsolutePath());
-        } catch (UnsatisfiedLinkError e) {
-            throw new UnknownPlatformException(String.format("Could not load %s natives for %s", libraryName, getNativeFolderName()), e);
+    @Nullable
+    private static String getBuildChecksum(String resourcePath) {
+        try (InputStream in = getResource(CHECKSUMS_RESOURCE_PATH)) {
+            if (in == null) {
+                return null;
+            }
+            Properties checksums = new Properties();
+            checksums.load(in);
+            return checksums.getProperty(resourcePath);
+        } catch (IOException e) {
+            return null;
         }
     }
 
@@ -0,0 +1,207 @@
+package ru.dimaskama.javah264;
+
+import ru.dimaskama.javah264.exception.NativeMemoryBudgetException;
+import ru.dimaskama.javah264.exception.UnknownPlatformException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/// Accounting of the native memory held by [H264Decoder] and [H264Encoder] instances.
+/// This memory is outside the Java heap, so it isn't limited by `-Xmx`.
+///
+/// Usage of each instance is estimated from the frame dimensions it works with: OpenH264 internal
+/// picture buffers plus the conversion and staging buffers used for each frame.
+/// Optionally, a global budget can be set. The [BudgetPolicy] is applied before any memory is used:
+///
+/// - Decoders are admitted when they are created. Their frame dimensions are only known after decoding,
+///   when the memory is already allocated, so decoders must be created with expected dimensions while
+///   a budget is set. Larger frames than expected are recorded, but never rejected.
+/// - Encoders are admitted when they are created and before encoding larger frames than before, including
+///   the first frame of an encoder created without expected dimensions.
+///
+/// So a burst of new streams can't slip under the budget with empty reservations.
+/// An instance is always admitted when no other one is tracked, so a budget smaller than a single stream
+/// doesn't block everything. With [BudgetPolicy#Queue] and no timeout, instances that grow at the same time
+/// may wait for each other forever, so a timeout is recommended.
+public final class NativeMemory {
+
+    // Approximate number of YUV 4:2:0 pictures OpenH264 keeps per instance (references, reconstruction, source)
+    private static final int DECODER_PICTURES = 6;
+    private static final int ENCODER_PICTURES = 6;
+
+    private static final Object LOCK = new Object();
+    private static long trackedBytes;
+    private static long budget = -1L;
+    private static BudgetPolicy budgetPolicy = BudgetPolicy.Reject;
+    private static long queueTimeoutMillis = 0L;
+
+    private NativeMemory() {
+
+    }
+
+    /// Estimated native memory held by all open decoders and encoders, in bytes
+    public static long getTrackedBytes() {
+        synchronized (LOCK) {
+            return trackedBytes;
+        }
+    }
+
+    /// Exact memory currently allocated by the Rust side of the library, in bytes.
+    /// Doesn't include OpenH264 internal buffers
+    public static long getAllocatedBytes() throws IOException, UnknownPlatformException {
+        OpenH264Lib.load();
+        return allocatedBytes0();
+    }
+
+    public static long getBudget() {
+        synchronized (LOCK) {
+            return budget;
+        }
+    }
+
+    /// Sets the global budget in bytes, -1 to disable it
+    public static void setBudget(long bytes) {
+        synchronized (LOCK) {
+            budget = bytes;
+            LOCK.notifyAll();
+        }
+    }
+
+    /// Sets what happens to new or growing instances while the budget is exceeded.
+    /// With [BudgetPolicy#Queue] they wait up to `timeout` (0 to wait indefinitely)
+    public static void setBudgetPolicy(BudgetPolicy policy, long timeout, TimeUnit unit) {
+        synchronized (LOCK) {
+            budgetPolicy = policy;
+            queueTimeoutMillis = unit.toMillis(timeout);
+            LOCK.notifyAll();
+        }
+    }
+
+    static long estimateDecoder(int width, int height, int pixelSize) {
+        // OpenH264 pictures + RGB staging buffer
+        return yuvSize(width, height) * DECODER_PICTURES + (long) width * height * pixelSize;
+    }
+
+    static long estimateEncoder(int width, int height, int pixelSize) {
+        // OpenH264 pictures + converted YUV buffer + copied input
+        return yuvSize(width, height) * (ENCODER_PICTURES + 1) + (long) width * height * pixelSize;
+    }
+
+    private static long yuvSize(int width, int height) {
+        return (long) width * height * 3 / 2;
+    }
+
+    /// Reserves `bytes` for a new instance, applying the budget
+    static Reservation reserve(String owner, long bytes) {
+        synchronized (LOCK) {
+            admit(owner, 0L, bytes);
+            trackedBytes += bytes;
+            return new Reservation(owner, bytes);
+        }
+    }
+
+    // Returns when `extra` bytes fit into the budget, otherwise throws or waits depending on the policy.
+    // Must be called while holding the lock
+    private static void admit(String owner, long ownBytes, long extra) {
+        if (exceeds(ownBytes, extra)) {
+            if (budgetPolicy == BudgetPolicy.Reject) {
+                throw budgetExceeded(owner, extra);
+            }
+            long deadline = queueTimeoutMillis > 0L ? System.currentTimeMillis() + queueTimeoutMillis : Long.MAX_VALUE;
+            try {
+                while (exceeds(ownBytes, extra)) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0L) {
+                        throw budgetExceeded(owner, extra);
+                    }
+                    LOCK.wait(deadline == Long.MAX_VALUE ? 0L : wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw budgetExceeded(owner, extra);
+            }
+        }
+    }
+
+    private static boolean exceeds(long ownBytes, long extra) {
+        return budget >= 0L && trackedBytes - ownBytes > 0L && trackedBytes + extra > budget;
+    }
+
+    private static NativeMemoryBudgetException budgetExceeded(String owner, long bytes) {
+        return new NativeMemoryBudgetException(String.format("Native memory budget exceeded by %s: %d tracked + %d requested > %d", owner, trackedBytes, bytes, budget));
+    }
+
+    private static native long allocatedBytes0();
+
+    /// Native memory tracked for a single instance
+    static final class Reservation {
+
+        private final String owner;
+        private volatile long bytes;
+        private boolean released;
+
+        private Reservation(String owner, long bytes) {
+            this.owner = owner;
+            this.bytes = bytes;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /// Updates the usage before the frame dimensions change.
+        /// Growth is subject to the budget policy, so it may throw [NativeMemoryBudgetException] or block
+        void resize(long newBytes) {
+            if (bytes != newBytes) {
+                synchronized (LOCK) {
+                    if (newBytes > bytes) {
+                        admit(owner, bytes, newBytes - bytes);
+                    }
+                    // Could have been released while waiting
+                    if (!released) {
+                        trackedBytes += newBytes - bytes;
+                        bytes = newBytes;
+                        LOCK.notifyAll();
+                    }
+                }
+            }
+        }
+
+        /// Updates the usage after the memory is already allocated. Never throws or blocks,
+        /// but the growth counts against the budget for other instances
+        void record(long newBytes) {
+            if (bytes != newBytes) {
+                synchronized (LOCK) {
+                    if (!released) {
+                        trackedBytes += newBytes - bytes;
+                        bytes = newBytes;
+                        LOCK.notifyAll();
+                    }
+                }
+            }
+        }
+
+        void release() {
+            synchronized (LOCK) {
+                if (!released) {
+                    trackedBytes -= bytes;
+                    bytes = 0L;
+                    released = true;
+                    LOCK.notifyAll();
+                }
+            }
+        }
+
+    }
+
+    /// What to do with new or growing instances while the budget is exceeded
+    public enum BudgetPolicy {
+
+        /// Throw [NativeMemoryBudgetException]
+        Reject,
+        /// Wait until other instances are closed or shrink
+        Queue
+
+    }
+
+}
@@ -0,0 +1,13 @@
+package ru.dimaskama.javah264;
+
+/// Notified when [H264Decoder] detects that the stream is damaged (reference loss, concealment or
+/// a decode error), so an IDR frame can be requested from the sender right away.
+///
+/// Called once per loss, on the decoding thread. The listener is armed again after
+/// a frame is decoded without errors.
+@FunctionalInterface
+public interface ReferenceLossListener {
+
+    void onReferenceLost(H264Decoder decoder, DecodeStatus status);
+
+}
@@ -0,0 +1,10 @@
+package ru.dimaskama.javah264.exception;
+
+// Unchecked, so H264Decoder and H264Encoder constructors keep their signatures
+public class NativeMemoryBudgetException extends RuntimeException {
+
+    public NativeMemoryBudgetException(String message) {
+        super(message);
+    }
+
+}
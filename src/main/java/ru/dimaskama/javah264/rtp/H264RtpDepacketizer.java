@@ -0,0 +1,137 @@
+package ru.dimaskama.javah264.rtp;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/// Reassembles H.264 access units from RTP packets produced as described in RFC 6184
+/// (single NAL unit, STAP-A and FU-A packets).
+///
+/// Access units are emitted in Annex B format, ready to be passed to [ru.dimaskama.javah264.H264Decoder].
+/// An access unit is complete when a packet with the marker bit set is received or the timestamp changes.
+/// NAL units with lost fragments are dropped.
+///
+/// Not thread-safe.
+public class H264RtpDepacketizer {
+
+    private byte[] buffer = new byte[64 * 1024];
+    private int length;
+    private boolean hasTimestamp;
+    private int timestamp;
+    private int expectedSequenceNumber = -1;
+    // Position of the FU-A NAL unit being reassembled in the buffer, -1 if there is none
+    private int fragmentStart = -1;
+
+    /// Processes one RTP packet, passing completed access units to the sink
+    public void depacketize(byte[] packet, int offset, int length, Consumer<byte[]> sink) {
+        if (length < H264RtpPacketizer.RTP_HEADER_SIZE || (packet[offset] & 0xC0) != 0x80) {
+            return;
+        }
+        int end = offset + length;
+        int start = offset + H264RtpPacketizer.RTP_HEADER_SIZE + (packet[offset] & 0x0F) * 4;
+        if ((packet[offset] & 0x10) != 0) {
+            if (start + 4 > end) {
+                return;
+            }
+            start += 4 + (((packet[start + 2] & 0xFF) << 8) | (packet[start + 3] & 0xFF)) * 4;
+        }
+        if ((packet[offset] & 0x20) != 0) {
+            end -= packet[end - 1] & 0xFF;
+        }
+        if (start >= end) {
+            return;
+        }
+        boolean marker = (packet[offset + 1] & 0x80) != 0;
+        int sequenceNumber = ((packet[offset + 2] & 0xFF) << 8) | (packet[offset + 3] & 0xFF);
+        int packetTimestamp = ((packet[offset + 4] & 0xFF) << 24) | ((packet[offset + 5] & 0xFF) << 16)
+                | ((packet[offset + 6] & 0xFF) << 8) | (packet[offset + 7] & 0xFF);
+
+        if (expectedSequenceNumber != -1 && sequenceNumber != expectedSequenceNumber) {
+            dropFragment();
+        }
+        expectedSequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        if (hasTimestamp && packetTimestamp != timestamp) {
+            flush(sink);
+        }
+        hasTimestamp = true;
+        timestamp = packetTimestamp;
+
+        int type = packet[start] & 0x1F;
+        if (type >= 1 && type <= 23) {
+            appendNal(packet, start, end - start);
+        } else if (type == H264RtpPacketizer.STAP_A) {
+            int position = start + 1;
+            while (position + 2 <= end) {
+                int size = ((packet[position] & 0xFF) << 8) | (packet[position + 1] & 0xFF);
+                position += 2;
+                if (size == 0 || position + size > end) {
+                    break;
+                }
+                appendNal(packet, position, size);
+                position += size;
+            }
+        } else if (type == H264RtpPacketizer.FU_A && end - start > 2) {
+            int fuHeader = packet[start + 1] & 0xFF;
+            if ((fuHeader & 0x80) != 0) {
+                dropFragment();
+                fragmentStart = this.length;
+                appendStartCode();
+                ensureCapacity(1);
+                buffer[this.length++] = (byte) ((packet[start] & 0xE0) | (fuHeader & 0x1F));
+            }
+            // Without the start fragment the NAL unit cannot be restored
+            if (fragmentStart != -1) {
+                append(packet, start + 2, end - start - 2);
+                if ((fuHeader & 0x40) != 0) {
+                    fragmentStart = -1;
+                }
+            }
+        }
+        // Other packet types (STAP-B, MTAP, FU-B) are only used in interleaved mode and are ignored
+
+        if (marker) {
+            flush(sink);
+        }
+    }
+
+    /// Emits the pending access unit, if any. Useful at the end of the stream
+    public void flush(Consumer<byte[]> sink) {
+        dropFragment();
+        if (length != 0) {
+            sink.accept(Arrays.copyOf(buffer, length));
+            length = 0;
+        }
+    }
+
+    private void dropFragment() {
+        if (fragmentStart != -1) {
+            length = fragmentStart;
+            fragmentStart = -1;
+        }
+    }
+
+    private void appendNal(byte[] data, int offset, int length) {
+        appendStartCode();
+        append(data, offset, length);
+    }
+
+    private void appendStartCode() {
+        ensureCapacity(4);
+        buffer[length++] = 0;
+        buffer[length++] = 0;
+        buffer[length++] = 0;
+        buffer[length++] = 1;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, this.length, length);
+        this.length += length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+}
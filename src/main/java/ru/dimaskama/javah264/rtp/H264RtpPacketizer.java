@@ -0,0 +1,341 @@
+package ru.dimaskama.javah264.rtp;
+
+import org.jetbrains.annotations.Nullable;
+import ru.dimaskama.javah264.EncodedFrame;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/// Splits H.264 NAL units into RTP packets as described in RFC 6184 (non-interleaved mode).
+///
+/// Small NAL units are aggregated into STAP-A packets, NAL units that don't fit into the MTU
+/// are fragmented into FU-A packets, and the rest are sent as single NAL unit packets.
+/// Packets are written into pooled buffers, so no memory is allocated per packet
+/// once the pool is warmed up.
+///
+/// To avoid FU-A fragmentation, limit the encoder slices to the packet payload size with
+/// [ru.dimaskama.javah264.H264Encoder.Builder#maxSliceLen(int)] set to [#getMaxPayloadSize()] (MTU - 12).
+/// Each slice then fits into a single NAL unit packet, so losing one packet loses only one slice.
+///
+/// Not thread-safe.
+public class H264RtpPacketizer {
+
+    static final int RTP_HEADER_SIZE = 12;
+    static final int STAP_A = 24;
+    static final int FU_A = 28;
+
+    private final RtpPacketPool pool;
+    private final int maxPayloadSize;
+    private final int payloadType;
+    private final int ssrc;
+    private int sequenceNumber;
+
+    public H264RtpPacketizer() {
+        this(new Builder());
+    }
+
+    public H264RtpPacketizer(Builder builder) {
+        if (builder.mtu < RTP_HEADER_SIZE + 3) {
+            throw new IllegalArgumentException("MTU is too small: " + builder.mtu);
+        }
+        if (builder.payloadType < 0 || builder.payloadType > 127) {
+            throw new IllegalArgumentException("Invalid payload type: " + builder.payloadType);
+        }
+        this.pool = new RtpPacketPool(builder.maxPooledPackets, builder.mtu);
+        this.maxPayloadSize = builder.mtu - RTP_HEADER_SIZE;
+        this.payloadType = builder.payloadType;
+        this.ssrc = builder.ssrc != null ? builder.ssrc : ThreadLocalRandom.current().nextInt();
+        this.sequenceNumber = builder.initialSequenceNumber != null ? builder.initialSequenceNumber : ThreadLocalRandom.current().nextInt(0x10000);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    /// Maximum payload size of a packet, i.e. MTU minus the RTP header.
+    /// Pass it to [ru.dimaskama.javah264.H264Encoder.Builder#maxSliceLen(int)] to keep slices in single NAL unit packets
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    /// Packetizes one access unit, e.g. the output of [ru.dimaskama.javah264.H264Encoder#encodeSeparateRGBA].
+    /// NAL units may start with a start code, empty ones are skipped. The marker bit is set on the last packet.
+    ///
+    /// Every packet passed to the sink has to be [released][RtpPacket#release()] once it is sent
+    ///
+    /// @param timestamp RTP timestamp (90 kHz clock)
+    public void packetize(byte[][] nalUnits, int timestamp, Consumer<RtpPacket> sink) {
+        packetize(new ArrayNalUnits(nalUnits), timestamp, sink);
+    }
+
+    /// Packetizes an encoded frame using its NAL unit boundaries. Skipped frames produce no packets.
+    ///
+    /// Every packet passed to the sink has to be [released][RtpPacket#release()] once it is sent
+    ///
+    /// @param timestamp RTP timestamp (90 kHz clock)
+    public void packetize(EncodedFrame frame, int timestamp, Consumer<RtpPacket> sink) {
+        packetize(new FrameNalUnits(frame), timestamp, sink);
+    }
+
+    private void packetize(NalUnits nalUnits, int timestamp, Consumer<RtpPacket> sink) {
+        int count = nalUnits.count();
+        // The marker goes on the packet of the last non-empty unit
+        int last = count - 1;
+        while (last >= 0 && nalUnits.length(last) <= 0) {
+            last--;
+        }
+        int i = 0;
+        while (i < count) {
+            byte[] data = nalUnits.data(i);
+            int offset = nalUnits.offset(i);
+            int length = nalUnits.length(i);
+            if (length <= 0) {
+                i++;
+                continue;
+            }
+            if (length > maxPayloadSize) {
+                fragment(data, offset, length, timestamp, i == last, sink);
+                i++;
+                continue;
+            }
+            int aggregated = countAggregated(nalUnits, i);
+            if (aggregated > 1) {
+                aggregate(nalUnits, i, aggregated, timestamp, i + aggregated > last, sink);
+                i += aggregated;
+            } else {
+                RtpPacket packet = pool.acquire();
+                byte[] buffer = packet.getBuffer();
+                writeHeader(buffer, i == last, timestamp);
+                System.arraycopy(data, offset, buffer, RTP_HEADER_SIZE, length);
+                packet.setLength(RTP_HEADER_SIZE + length);
+                sink.accept(packet);
+                i++;
+            }
+        }
+    }
+
+    // Number of NAL units starting from `from` that fit into one STAP-A packet
+    private int countAggregated(NalUnits nalUnits, int from) {
+        int size = 1;
+        int count = 0;
+        for (int i = from; i < nalUnits.count(); i++) {
+            int length = nalUnits.length(i);
+            if (length <= 0) {
+                break;
+            }
+            size += 2 + length;
+            if (size > maxPayloadSize) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private void aggregate(NalUnits nalUnits, int from, int count, int timestamp, boolean last, Consumer<RtpPacket> sink) {
+        RtpPacket packet = pool.acquire();
+        byte[] buffer = packet.getBuffer();
+        writeHeader(buffer, last, timestamp);
+        int position = RTP_HEADER_SIZE + 1;
+        int forbidden = 0;
+        int nri = 0;
+        for (int i = from; i < from + count; i++) {
+            byte[] data = nalUnits.data(i);
+            int offset = nalUnits.offset(i);
+            int length = nalUnits.length(i);
+            // F bit is set if any of the aggregated units has it, NRI is the maximum of them
+            forbidden |= data[offset] & 0x80;
+            nri = Math.max(nri, data[offset] & 0x60);
+            buffer[position++] = (byte) (length >>> 8);
+            buffer[position++] = (byte) length;
+            System.arraycopy(data, offset, buffer, position, length);
+            position += length;
+        }
+        buffer[RTP_HEADER_SIZE] = (byte) (forbidden | nri | STAP_A);
+        packet.setLength(position);
+        sink.accept(packet);
+    }
+
+    private void fragment(byte[] nal, int offset, int length, int timestamp, boolean last, Consumer<RtpPacket> sink) {
+        int nalHeader = nal[offset] & 0xFF;
+        int indicator = (nalHeader & 0xE0) | FU_A;
+        int maxFragmentSize = maxPayloadSize - 2;
+        // The NAL header isn't sent, it is restored from the FU indicator and header
+        int position = offset + 1;
+        int end = offset + length;
+        boolean start = true;
+        while (position < end) {
+            int fragmentSize = Math.min(maxFragmentSize, end - position);
+            boolean lastFragment = position + fragmentSize == end;
+            RtpPacket packet = pool.acquire();
+            byte[] buffer = packet.getBuffer();
+            writeHeader(buffer, last && lastFragment, timestamp);
+            buffer[RTP_HEADER_SIZE] = (byte) indicator;
+            buffer[RTP_HEADER_SIZE + 1] = (byte) ((start ? 0x80 : 0) | (lastFragment ? 0x40 : 0) | (nalHeader & 0x1F));
+            System.arraycopy(nal, position, buffer, RTP_HEADER_SIZE + 2, fragmentSize);
+            packet.setLength(RTP_HEADER_SIZE + 2 + fragmentSize);
+            sink.accept(packet);
+            position += fragmentSize;
+            start = false;
+        }
+    }
+
+    private void writeHeader(byte[] buffer, boolean marker, int timestamp) {
+        int sequence = sequenceNumber;
+        sequenceNumber = (sequence + 1) & 0xFFFF;
+        buffer[0] = (byte) 0x80; // Version 2, no padding, no extension, no CSRC
+        buffer[1] = (byte) ((marker ? 0x80 : 0) | payloadType);
+        buffer[2] = (byte) (sequence >>> 8);
+        buffer[3] = (byte) sequence;
+        buffer[4] = (byte) (timestamp >>> 24);
+        buffer[5] = (byte) (timestamp >>> 16);
+        buffer[6] = (byte) (timestamp >>> 8);
+        buffer[7] = (byte) timestamp;
+        buffer[8] = (byte) (ssrc >>> 24);
+        buffer[9] = (byte) (ssrc >>> 16);
+        buffer[10] = (byte) (ssrc >>> 8);
+        buffer[11] = (byte) ssrc;
+    }
+
+    static int startCodeLength(byte[] data, int offset, int length) {
+        if (length >= 4 && data[offset] == 0 && data[offset + 1] == 0 && data[offset + 2] == 0 && data[offset + 3] == 1) {
+            return 4;
+        }
+        if (length >= 3 && data[offset] == 0 && data[offset + 1] == 0 && data[offset + 2] == 1) {
+            return 3;
+        }
+        return 0;
+    }
+
+    // NAL units without start codes
+    private interface NalUnits {
+
+        int count();
+
+        byte[] data(int index);
+
+        int offset(int index);
+
+        int length(int index);
+
+    }
+
+    private static final class ArrayNalUnits implements NalUnits {
+
+        private final byte[][] nalUnits;
+
+        private ArrayNalUnits(byte[][] nalUnits) {
+            this.nalUnits = nalUnits;
+        }
+
+        @Override
+        public int count() {
+            return nalUnits.length;
+        }
+
+        @Override
+        public byte[] data(int index) {
+            return nalUnits[index];
+        }
+
+        @Override
+        public int offset(int index) {
+            byte[] nal = nalUnits[index];
+            return startCodeLength(nal, 0, nal.length);
+        }
+
+        @Override
+        public int length(int index) {
+            byte[] nal = nalUnits[index];
+            return nal.length - startCodeLength(nal, 0, nal.length);
+        }
+
+    }
+
+    private static final class FrameNalUnits implements NalUnits {
+
+        private final EncodedFrame frame;
+
+        private FrameNalUnits(EncodedFrame frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public int count() {
+            return frame.getNalCount();
+        }
+
+        @Override
+        public byte[] data(int index) {
+            return frame.getData();
+        }
+
+        @Override
+        public int offset(int index) {
+            int offset = frame.getNalOffsets()[index];
+            return offset + startCodeLength(frame.getData(), offset, frame.getNalLengths()[index]);
+        }
+
+        @Override
+        public int length(int index) {
+            int offset = frame.getNalOffsets()[index];
+            int length = frame.getNalLengths()[index];
+            return length - startCodeLength(frame.getData(), offset, length);
+        }
+
+    }
+
+    public static class Builder {
+
+        private int mtu = 1200;
+        private int payloadType = 96;
+        private int maxPooledPackets = 64;
+        @Nullable
+        private Integer ssrc = null;
+        @Nullable
+        private Integer initialSequenceNumber = null;
+
+        private Builder() {
+
+        }
+
+        /// Maximum size of an RTP packet, including the RTP header
+        public Builder mtu(int value) {
+            this.mtu = value;
+            return this;
+        }
+
+        public Builder payloadType(int value) {
+            this.payloadType = value;
+            return this;
+        }
+
+        /// Maximum number of released packet buffers kept for reuse
+        public Builder maxPooledPackets(int value) {
+            this.maxPooledPackets = value;
+            return this;
+        }
+
+        /// Random by default
+        public Builder ssrc(int value) {
+            this.ssrc = value;
+            return this;
+        }
+
+        /// Random by default
+        public Builder initialSequenceNumber(int value) {
+            this.initialSequenceNumber = value & 0xFFFF;
+            return this;
+        }
+
+        public H264RtpPacketizer build() {
+            return new H264RtpPacketizer(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,59 @@
+package ru.dimaskama.javah264.rtp;
+
+/// RTP packet in a pooled buffer. Call [#release()] after the packet is sent,
+/// so the buffer can be reused for the next packets.
+public final class RtpPacket {
+
+    private final RtpPacketPool pool;
+    private final byte[] buffer;
+    private int length;
+    private boolean released;
+
+    RtpPacket(RtpPacketPool pool, int capacity) {
+        this.pool = pool;
+        this.buffer = new byte[capacity];
+    }
+
+    /// Packet data, including the RTP header. Only first [#getLength()] bytes are valid
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    public int getSequenceNumber() {
+        return ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+    }
+
+    public int getTimestamp() {
+        return ((buffer[4] & 0xFF) << 24) | ((buffer[5] & 0xFF) << 16) | ((buffer[6] & 0xFF) << 8) | (buffer[7] & 0xFF);
+    }
+
+    public boolean isMarker() {
+        return (buffer[1] & 0x80) != 0;
+    }
+
+    /// Returns this packet to the pool. The packet must not be used after that
+    ///
+    /// @throws IllegalStateException if the packet is already released
+    public void release() {
+        if (released) {
+            throw new IllegalStateException("RTP packet is already released");
+        }
+        released = true;
+        length = 0;
+        pool.release(this);
+    }
+
+    // Called when the packet is taken from the pool again
+    void reuse() {
+        released = false;
+    }
+
+}
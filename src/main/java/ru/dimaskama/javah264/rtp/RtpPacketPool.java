@@ -0,0 +1,30 @@
+package ru.dimaskama.javah264.rtp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Array-backed, so returning a packet doesn't allocate a queue node
+final class RtpPacketPool {
+
+    private final ArrayBlockingQueue<RtpPacket> packets;
+    private final int packetCapacity;
+
+    RtpPacketPool(int maxPooled, int packetCapacity) {
+        this.packets = new ArrayBlockingQueue<>(maxPooled);
+        this.packetCapacity = packetCapacity;
+    }
+
+    RtpPacket acquire() {
+        RtpPacket packet = packets.poll();
+        if (packet == null) {
+            return new RtpPacket(this, packetCapacity);
+        }
+        packet.reuse();
+        return packet;
+    }
+
+    void release(RtpPacket packet) {
+        // Dropped if the pool is full
+        packets.offer(packet);
+    }
+
+}
@@ -0,0 +1,88 @@
+package ru.dimaskama.javah264;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DecodeStatusTrackerTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42};
+    private static final byte[] IDR = {0, 0, 0, 1, 0x65, (byte) 0x88};
+    private static final byte[] P = {0, 0, 0, 1, 0x41, (byte) 0x9A};
+
+    @Test
+    @DisplayName("Listener fires once per loss and re-arms after a clean frame")
+    void listenerOncePerLoss() {
+        List<DecodeStatus> lossStatuses = new ArrayList<>();
+        DecodeStatusTracker tracker = new DecodeStatusTracker((d, status) -> lossStatuses.add(status), false);
+        tracker.afterDecode(null, DecodeStatus.Frame);
+        assertFalse(tracker.isReferenceLost());
+
+        tracker.afterDecode(null, DecodeStatus.Concealed);
+        tracker.afterDecode(null, DecodeStatus.ReferenceLost);
+        tracker.afterDecode(null, DecodeStatus.NoFrame);
+        tracker.afterDecode(null, DecodeStatus.Error);
+        assertEquals(1, lossStatuses.size());
+        assertEquals(DecodeStatus.Concealed, lossStatuses.get(0));
+        assertEquals(DecodeStatus.Error, tracker.getLastStatus());
+        assertTrue(tracker.isReferenceLost());
+
+        tracker.afterDecode(null, DecodeStatus.Frame);
+        assertFalse(tracker.isReferenceLost());
+        tracker.afterDecode(null, DecodeStatus.ReferenceLost);
+        assertEquals(2, lossStatuses.size());
+        assertEquals(DecodeStatus.ReferenceLost, lossStatuses.get(1));
+    }
+
+    @Test
+    @DisplayName("Skip until key frame")
+    void skipUntilKeyFrame() {
+        DecodeStatusTracker tracker = new DecodeStatusTracker(null, true);
+        assertTrue(tracker.beforeDecode(P));
+        tracker.afterDecode(null, DecodeStatus.ReferenceLost);
+
+        assertFalse(tracker.beforeDecode(P));
+        assertEquals(DecodeStatus.Skipped, tracker.getLastStatus());
+        assertFalse(tracker.beforeDecode(P));
+
+        // Waiting ends when the key frame is passed, even if it doesn't decode to a clean frame
+        assertTrue(tracker.beforeDecode(IDR));
+        tracker.afterDecode(null, DecodeStatus.Concealed);
+        assertTrue(tracker.isReferenceLost());
+        assertTrue(tracker.beforeDecode(P));
+        tracker.afterDecode(null, DecodeStatus.NoFrame);
+        assertTrue(tracker.beforeDecode(P));
+        tracker.afterDecode(null, DecodeStatus.Frame);
+        assertFalse(tracker.isReferenceLost());
+
+        // Next loss starts waiting again
+        assertTrue(tracker.beforeDecode(P));
+        tracker.afterDecode(null, DecodeStatus.Error);
+        assertFalse(tracker.beforeDecode(P));
+        assertTrue(tracker.beforeDecode(SPS));
+    }
+
+    @Test
+    @DisplayName("No skipping unless enabled")
+    void noSkipping() {
+        DecodeStatusTracker tracker = new DecodeStatusTracker(null, false);
+        tracker.afterDecode(null, DecodeStatus.ReferenceLost);
+        assertTrue(tracker.beforeDecode(P));
+    }
+
+    @Test
+    @DisplayName("Key frame detection")
+    void containsKeyFrame() {
+        assertTrue(DecodeStatusTracker.containsKeyFrame(SPS));
+        assertTrue(DecodeStatusTracker.containsKeyFrame(IDR));
+        assertFalse(DecodeStatusTracker.containsKeyFrame(P));
+        assertTrue(DecodeStatusTracker.containsKeyFrame(new byte[]{0, 0, 1, 0x41, 0x10, 0, 0, 1, 0x65}));
+        assertFalse(DecodeStatusTracker.containsKeyFrame(new byte[]{0, 0, 0, 0x65, 0x41}));
+        assertFalse(DecodeStatusTracker.containsKeyFrame(new byte[0]));
+    }
+
+}
@@ -4,10 +4,14 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import ru.dimaskama.javah264.exception.EncoderException;
 import ru.dimaskama.javah264.exception.UnknownPlatformException;
+import ru.dimaskama.javah264.rtp.H264RtpDepacketizer;
+import ru.dimaskama.javah264.rtp.H264RtpPacketizer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -56,6 +60,260 @@ public class JavaH264Test {
         assertTrue(atLeastOneFrameDecoded);
     }
 
+    @Test
+    @DisplayName("Decode and encodeFrame")
+    void decodeAndEncodeFrame() throws IOException, UnknownPlatformException, EncoderException {
+        byte[] h264data;
+        try (InputStream in = JavaH264Test.class.getClassLoader().getResourceAsStream("multi_512x512.h264")) {
+            h264data = readAllBytes(Objects.requireNonNull(in));
+        }
+        List<EncodedFrame> frames = new ArrayList<>();
+        try (H264Decoder decoder = new H264Decoder(); H264Encoder encoder = new H264Encoder()) {
+            for (byte[] nalUnit : H264Decoder.nalUnits(h264data)) {
+                DecodeResult decodeResult = decoder.decodeRGBA(nalUnit);
+                if (decodeResult != null) {
+                    frames.add(encoder.encodeFrameRGBA(decodeResult.getWidth(), decodeResult.getHeight(), decodeResult.getImage(), decodeResult.getTimestamp()));
+                }
+            }
+        }
+        assertFalse(frames.isEmpty());
+        assertTrue(frames.get(0).isKeyFrame());
+        for (EncodedFrame frame : frames) {
+            int size = 0;
+            for (int i = 0; i < frame.getNalCount(); i++) {
+                assertEquals(size, frame.getNalOffsets()[i]);
+                size += frame.getNalLengths()[i];
+            }
+            assertEquals(frame.getSize(), size);
+            assertEquals(frame.isSkipped(), frame.getSize() == 0);
+        }
+    }
+
+    @Test
+    @DisplayName("Encode, packetize, depacketize and decode")
+    void rtpRoundTrip() throws IOException, UnknownPlatformException, EncoderException {
+        byte[] h264data;
+        try (InputStream in = JavaH264Test.class.getClassLoader().getResourceAsStream("multi_512x512.h264")) {
+            h264data = readAllBytes(Objects.requireNonNull(in));
+        }
+        H264RtpPacketizer packetizer = H264RtpPacketizer.builder().mtu(500).build();
+        H264RtpDepacketizer depacketizer = new H264RtpDepacketizer();
+        List<byte[]> accessUnits = new ArrayList<>();
+        try (H264Decoder decoder = new H264Decoder(); H264Encoder encoder = new H264Encoder()) {
+            int timestamp = 0;
+            for (byte[] nalUnit : H264Decoder.nalUnits(h264data)) {
+                DecodeResult decodeResult = decoder.decodeRGBA(nalUnit);
+                if (decodeResult != null) {
+                    byte[][] encoded = encoder.encodeSeparateRGBA(decodeResult.getWidth(), decodeResult.getHeight(), decodeResult.getImage());
+                    packetizer.packetize(encoded, timestamp += 3000, packet -> {
+                        assertTrue(packet.getLength() <= 500);
+                        depacketizer.depacketize(packet.getBuffer(), 0, packet.getLength(), accessUnits::add);
+                        packet.release();
+                    });
+                }
+            }
+        }
+        boolean atLeastOneFrameDecoded = false;
+        try (H264Decoder decoder = new H264Decoder()) {
+            for (byte[] accessUnit : accessUnits) {
+                atLeastOneFrameDecoded |= decoder.decodeRGBA(accessUnit) != null;
+            }
+            atLeastOneFrameDecoded |= decoder.flushRemainingRGBA().length != 0;
+        }
+        assertTrue(atLeastOneFrameDecoded);
+    }
+
+    @Test
+    @DisplayName("Decode status")
+    void decodeStatus() throws IOException, UnknownPlatformException {
+        byte[] h264data;
+        try (InputStream in = JavaH264Test.class.getClassLoader().getResourceAsStream("multi_512x512.h264")) {
+            h264data = readAllBytes(Objects.requireNonNull(in));
+        }
+        List<DecodeStatus> lossStatuses = new ArrayList<>();
+        try (H264Decoder decoder = H264Decoder.builder()
+                .errorConcealment(H264Decoder.ErrorConcealment.SliceMvCopyCrossIdr)
+                .referenceLossListener((d, status) -> lossStatuses.add(status))
+                .build()) {
+            for (byte[] nalUnit : H264Decoder.nalUnits(h264data)) {
+                DecodeResult decodeResult = decoder.decodeRGBA(nalUnit);
+                DecodeStatus status = decoder.getLastStatus();
+                assertFalse(status.isDamaged());
+                assertEquals(decodeResult != null, status == DecodeStatus.Frame);
+            }
+            decoder.flushRemainingRGBA();
+            assertFalse(decoder.getLastStatus().isDamaged());
+        }
+        assertTrue(lossStatuses.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Decode status on frame loss")
+    void decodeStatusOnLoss() throws IOException, UnknownPlatformException, EncoderException {
+        List<byte[]> accessUnits = encodeWithPFrames(H264Encoder.builder(), 8);
+        List<DecodeStatus> lossStatuses = new ArrayList<>();
+        // First P frame is lost
+        try (H264Decoder decoder = H264Decoder.builder()
+                .errorConcealment(H264Decoder.ErrorConcealment.SliceMvCopyCrossIdr)
+                .referenceLossListener((d, status) -> lossStatuses.add(status))
+                .build()) {
+            assertNotNull(decoder.decodeRGBA(accessUnits.get(0)));
+            assertEquals(DecodeStatus.Frame, decoder.getLastStatus());
+            boolean damaged = false;
+            for (int i = 2; i < accessUnits.size(); i++) {
+                decoder.decodeRGBA(accessUnits.get(i));
+                damaged |= decoder.getLastStatus().isDamaged();
+            }
+            assertTrue(damaged);
+            assertFalse(lossStatuses.isEmpty());
+            assertTrue(lossStatuses.get(0).isDamaged());
+        }
+        // IDR frame and parameter sets are lost
+        try (H264Decoder decoder = new H264Decoder()) {
+            assertNull(decoder.decodeRGBA(accessUnits.get(1)));
+            assertTrue(decoder.getLastStatus().isDamaged());
+            assertTrue(decoder.isReferenceLost());
+        }
+    }
+
+    @Test
+    @DisplayName("Skip until key frame")
+    void skipUntilKeyFrame() throws IOException, UnknownPlatformException, EncoderException {
+        List<byte[]> accessUnits = encodeWithPFrames(H264Encoder.builder(), 8);
+        List<DecodeStatus> lossStatuses = new ArrayList<>();
+        try (H264Decoder decoder = H264Decoder.builder()
+                .skipUntilKeyFrame(true)
+                .referenceLossListener((d, status) -> lossStatuses.add(status))
+                .build()) {
+            for (int loss = 1; loss <= 2; loss++) {
+                // Recovers on the IDR frame
+                assertNotNull(decoder.decodeRGBA(accessUnits.get(0)));
+                assertEquals(DecodeStatus.Frame, decoder.getLastStatus());
+                assertFalse(decoder.isReferenceLost());
+                // First P frame is lost, the rest is skipped once it's noticed
+                int skipped = 0;
+                for (int i = 2; i < accessUnits.size(); i++) {
+                    boolean lost = decoder.isReferenceLost();
+                    DecodeResult decodeResult = decoder.decodeRGBA(accessUnits.get(i));
+                    if (lost) {
+                        assertNull(decodeResult);
+                        assertEquals(DecodeStatus.Skipped, decoder.getLastStatus());
+                        skipped++;
+                    }
+                }
+                assertTrue(skipped > 0);
+                assertEquals(loss, lossStatuses.size());
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Concealed frame is returned")
+    void concealedFrame() throws IOException, UnknownPlatformException, EncoderException {
+        List<byte[]> accessUnits = encodeWithPFrames(H264Encoder.builder().maxSliceLen(500), 4);
+        // P frame with the most slices loses one of them
+        int damagedIndex = 1;
+        for (int i = 2; i < accessUnits.size(); i++) {
+            if (sliceCount(accessUnits.get(i)) > sliceCount(accessUnits.get(damagedIndex))) {
+                damagedIndex = i;
+            }
+        }
+        byte[][] nalUnits = H264Decoder.nalUnits(accessUnits.get(damagedIndex));
+        int sliceCount = sliceCount(accessUnits.get(damagedIndex));
+        assertTrue(sliceCount > 1);
+        ByteArrayOutputStream damaged = new ByteArrayOutputStream();
+        int slice = 0;
+        for (byte[] nalUnit : nalUnits) {
+            if (nalType(nalUnit) != 1 || slice++ != sliceCount / 2) {
+                damaged.write(nalUnit);
+            }
+        }
+        try (H264Decoder decoder = H264Decoder.builder()
+                .errorConcealment(H264Decoder.ErrorConcealment.SliceMvCopyCrossIdr)
+                .build()) {
+            for (int i = 0; i < damagedIndex; i++) {
+                assertNotNull(decoder.decodeRGBA(accessUnits.get(i)));
+                assertEquals(DecodeStatus.Frame, decoder.getLastStatus());
+            }
+            DecodeResult decodeResult = decoder.decodeRGBA(damaged.toByteArray());
+            assertNotNull(decodeResult);
+            assertEquals(DecodeStatus.Concealed, decoder.getLastStatus());
+            assertEquals(512, decodeResult.getWidth());
+            assertEquals(512, decodeResult.getHeight());
+            assertEquals(512 * 512 * 4, decodeResult.getImage().length);
+            assertTrue(decoder.isReferenceLost());
+        }
+    }
+
+    @Test
+    @DisplayName("Native memory tracking")
+    void nativeMemoryTracking() throws IOException, UnknownPlatformException, EncoderException {
+        byte[] h264data;
+        try (InputStream in = JavaH264Test.class.getClassLoader().getResourceAsStream("multi_512x512.h264")) {
+            h264data = readAllBytes(Objects.requireNonNull(in));
+        }
+        long trackedBefore = NativeMemory.getTrackedBytes();
+        try (H264Decoder decoder = new H264Decoder(); H264Encoder encoder = new H264Encoder()) {
+            for (byte[] nalUnit : H264Decoder.nalUnits(h264data)) {
+                DecodeResult decodeResult = decoder.decodeRGBA(nalUnit);
+                if (decodeResult != null) {
+                    encoder.encodeRGBA(decodeResult.getWidth(), decodeResult.getHeight(), decodeResult.getImage());
+                }
+            }
+            assertTrue(decoder.getNativeMemoryUsage() > 0);
+            assertTrue(encoder.getNativeMemoryUsage() > 0);
+            assertEquals(trackedBefore + decoder.getNativeMemoryUsage() + encoder.getNativeMemoryUsage(), NativeMemory.getTrackedBytes());
+            assertTrue(NativeMemory.getAllocatedBytes() > 0);
+        }
+        assertEquals(trackedBefore, NativeMemory.getTrackedBytes());
+    }
+
+    // Test stream frames, encoded as one IDR frame followed by P frames. Elements are access units
+    private static List<byte[]> encodeWithPFrames(H264Encoder.Builder builder, int frameCount) throws IOException, UnknownPlatformException, EncoderException {
+        byte[] h264data;
+        try (InputStream in = JavaH264Test.class.getClassLoader().getResourceAsStream("multi_512x512.h264")) {
+            h264data = readAllBytes(Objects.requireNonNull(in));
+        }
+        List<DecodeResult> images = new ArrayList<>();
+        try (H264Decoder decoder = new H264Decoder()) {
+            for (byte[] nalUnit : H264Decoder.nalUnits(h264data)) {
+                DecodeResult decodeResult = decoder.decodeRGBA(nalUnit);
+                if (decodeResult != null) {
+                    images.add(decodeResult);
+                }
+            }
+        }
+        List<byte[]> accessUnits = new ArrayList<>();
+        try (H264Encoder encoder = builder.enableSkipFrame(false).build()) {
+            for (int i = 0; i < frameCount; i++) {
+                DecodeResult image = images.get(i % images.size());
+                byte[] accessUnit = encoder.encodeRGBA(image.getWidth(), image.getHeight(), image.getImage());
+                assertTrue(accessUnit.length != 0);
+                accessUnits.add(accessUnit);
+            }
+        }
+        return accessUnits;
+    }
+
+    private static int sliceCount(byte[] accessUnit) throws IOException, UnknownPlatformException {
+        int count = 0;
+        for (byte[] nalUnit : H264Decoder.nalUnits(accessUnit)) {
+            if (nalType(nalUnit) == 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Type of the NAL unit that starts with a start code
+    private static int nalType(byte[] nalUnit) {
+        int i = 0;
+        while (i < nalUnit.length - 1 && nalUnit[i] == 0) {
+            i++;
+        }
+        return nalUnit[i + 1] & 0x1F;
+    }
+
     private static byte[] readAllBytes(InputStream inputStream) throws IOException {
         final int bufLen = 1024;
         byte[] buf = new byte[bufLen];
@@ -0,0 +1,201 @@
+package ru.dimaskama.javah264;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru.dimaskama.javah264.exception.NativeMemoryBudgetException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class NativeMemoryTest {
+
+    @AfterEach
+    void resetBudget() {
+        NativeMemory.setBudget(-1L);
+        NativeMemory.setBudgetPolicy(NativeMemory.BudgetPolicy.Reject, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    @DisplayName("Reject new instances over budget")
+    void reject() {
+        long base = NativeMemory.getTrackedBytes();
+        NativeMemory.setBudget(base + 1000L);
+        NativeMemory.Reservation first = NativeMemory.reserve("first", 800L);
+        try {
+            assertThrows(NativeMemoryBudgetException.class, () -> NativeMemory.reserve("second", 300L));
+            assertEquals(base + 800L, NativeMemory.getTrackedBytes());
+            NativeMemory.Reservation second = NativeMemory.reserve("second", 200L);
+            assertEquals(base + 1000L, NativeMemory.getTrackedBytes());
+            second.release();
+        } finally {
+            first.release();
+        }
+        assertEquals(base, NativeMemory.getTrackedBytes());
+    }
+
+    @Test
+    @DisplayName("Reject growth over budget")
+    void rejectGrowth() {
+        long base = NativeMemory.getTrackedBytes();
+        NativeMemory.setBudget(base + 1000L);
+        NativeMemory.Reservation first = NativeMemory.reserve("first", 0L);
+        NativeMemory.Reservation second = NativeMemory.reserve("second", 0L);
+        try {
+            first.resize(800L);
+            // Empty reservations are checked on the first frame
+            assertThrows(NativeMemoryBudgetException.class, () -> second.resize(300L));
+            assertEquals(0L, second.getBytes());
+            second.resize(200L);
+            assertThrows(NativeMemoryBudgetException.class, () -> first.resize(900L));
+            assertEquals(800L, first.getBytes());
+            // Shrinking is always allowed
+            first.resize(100L);
+            second.resize(900L);
+            assertEquals(base + 1000L, NativeMemory.getTrackedBytes());
+        } finally {
+            first.release();
+            second.release();
+        }
+        assertEquals(base, NativeMemory.getTrackedBytes());
+    }
+
+    @Test
+    @DisplayName("Record growth over budget")
+    void recordGrowth() {
+        long base = NativeMemory.getTrackedBytes();
+        NativeMemory.setBudget(base + 1000L);
+        NativeMemory.setBudgetPolicy(NativeMemory.BudgetPolicy.Queue, 50L, TimeUnit.MILLISECONDS);
+        NativeMemory.Reservation first = NativeMemory.reserve("first", 800L);
+        NativeMemory.Reservation second = NativeMemory.reserve("second", 100L);
+        try {
+            // Memory that is already allocated is recorded without waiting
+            long start = System.nanoTime();
+            second.record(900L);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50L));
+            assertEquals(base + 1700L, NativeMemory.getTrackedBytes());
+            // But it counts against the budget for new instances
+            assertThrows(NativeMemoryBudgetException.class, () -> NativeMemory.reserve("third", 100L));
+        } finally {
+            first.release();
+            second.release();
+        }
+        second.record(500L);
+        assertEquals(base, NativeMemory.getTrackedBytes());
+    }
+
+    @Test
+    @DisplayName("Decoder requires expected dimensions while a budget is set")
+    void decoderWithoutDimensions() {
+        NativeMemory.setBudget(NativeMemory.getTrackedBytes() + 1000L);
+        assertThrows(IllegalArgumentException.class, H264Decoder::new);
+    }
+
+    @Test
+    @DisplayName("Admit the only instance over budget")
+    void admitAlone() {
+        assumeTrue(NativeMemory.getTrackedBytes() == 0L);
+        NativeMemory.setBudget(100L);
+        NativeMemory.Reservation reservation = NativeMemory.reserve("alone", 500L);
+        try {
+            reservation.resize(1000L);
+            assertEquals(1000L, NativeMemory.getTrackedBytes());
+        } finally {
+            reservation.release();
+        }
+    }
+
+    @Test
+    @DisplayName("Queue with timeout")
+    void queueTimeout() {
+        long base = NativeMemory.getTrackedBytes();
+        NativeMemory.setBudget(base + 1000L);
+        NativeMemory.setBudgetPolicy(NativeMemory.BudgetPolicy.Queue, 50L, TimeUnit.MILLISECONDS);
+        NativeMemory.Reservation first = NativeMemory.reserve("first", 800L);
+        try {
+            long start = System.nanoTime();
+            assertThrows(NativeMemoryBudgetException.class, () -> NativeMemory.reserve("second", 300L));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50L));
+            NativeMemory.Reservation second = NativeMemory.reserve("second", 0L);
+            assertThrows(NativeMemoryBudgetException.class, () -> second.resize(300L));
+            second.release();
+        } finally {
+            first.release();
+        }
+        assertEquals(base, NativeMemory.getTrackedBytes());
+    }
+
+    @Test
+    @DisplayName("Queue until released")
+    void queueUntilReleased() throws InterruptedException {
+        long base = NativeMemory.getTrackedBytes();
+        NativeMemory.setBudget(base + 1000L);
+        NativeMemory.setBudgetPolicy(NativeMemory.BudgetPolicy.Queue, 0L, TimeUnit.MILLISECONDS);
+        NativeMemory.Reservation first = NativeMemory.reserve("first", 800L);
+        AtomicReference<NativeMemory.Reservation> second = new AtomicReference<>();
+        Thread thread = new Thread(() -> second.set(NativeMemory.reserve("second", 300L)));
+        thread.start();
+        awaitWaiting(thread);
+        assertNull(second.get());
+        first.release();
+        thread.join(5000L);
+        assertFalse(thread.isAlive());
+        assertNotNull(second.get());
+        assertEquals(base + 300L, NativeMemory.getTrackedBytes());
+
+        // Growth waits too
+        NativeMemory.Reservation third = NativeMemory.reserve("third", 0L);
+        thread = new Thread(() -> third.resize(800L));
+        thread.start();
+        awaitWaiting(thread);
+        assertEquals(0L, third.getBytes());
+        second.get().resize(100L);
+        thread.join(5000L);
+        assertFalse(thread.isAlive());
+        assertEquals(800L, third.getBytes());
+        second.get().release();
+        third.release();
+        assertEquals(base, NativeMemory.getTrackedBytes());
+    }
+
+    @Test
+    @DisplayName("Interrupt queued instance")
+    void queueInterrupt() throws InterruptedException {
+        long base = NativeMemory.getTrackedBytes();
+        NativeMemory.setBudget(base + 1000L);
+        NativeMemory.setBudgetPolicy(NativeMemory.BudgetPolicy.Queue, 0L, TimeUnit.MILLISECONDS);
+        NativeMemory.Reservation first = NativeMemory.reserve("first", 800L);
+        AtomicReference<RuntimeException> exception = new AtomicReference<>();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            try {
+                NativeMemory.reserve("second", 300L);
+            } catch (RuntimeException e) {
+                exception.set(e);
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        thread.start();
+        awaitWaiting(thread);
+        thread.interrupt();
+        thread.join(5000L);
+        assertFalse(thread.isAlive());
+        assertTrue(exception.get() instanceof NativeMemoryBudgetException);
+        assertTrue(interrupted.get());
+        first.release();
+        assertEquals(base, NativeMemory.getTrackedBytes());
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline, "Thread is not waiting");
+            Thread.sleep(1L);
+        }
+    }
+
+}
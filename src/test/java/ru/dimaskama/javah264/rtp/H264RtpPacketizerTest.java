@@ -0,0 +1,178 @@
+package ru.dimaskama.javah264.rtp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class H264RtpPacketizerTest {
+
+    @Test
+    @DisplayName("Single NAL unit packet")
+    void singleNal() {
+        byte[] nal = nal(0x65, 50);
+        List<byte[]> packets = packetize(packetizer(100), withStartCode(nal));
+        assertEquals(1, packets.size());
+        byte[] packet = packets.get(0);
+        assertEquals(12 + nal.length, packet.length);
+        assertTrue(isMarker(packet));
+        assertEquals(96, packet[1] & 0x7F);
+        assertArrayEquals(nal, Arrays.copyOfRange(packet, 12, packet.length));
+    }
+
+    @Test
+    @DisplayName("STAP-A packet")
+    void stapA() {
+        byte[] sps = nal(0x67, 10);
+        // F bit set, NRI 1
+        byte[] other = nal(0xA1, 5);
+        List<byte[]> packets = packetize(packetizer(100), sps, other);
+        assertEquals(1, packets.size());
+        byte[] packet = packets.get(0);
+        assertTrue(isMarker(packet));
+        // F from any unit, maximum NRI, type 24
+        assertEquals(0x80 | 0x60 | 24, packet[12] & 0xFF);
+        assertEquals(sps.length, ((packet[13] & 0xFF) << 8) | (packet[14] & 0xFF));
+        assertArrayEquals(sps, Arrays.copyOfRange(packet, 15, 15 + sps.length));
+        int position = 15 + sps.length;
+        assertEquals(other.length, ((packet[position] & 0xFF) << 8) | (packet[position + 1] & 0xFF));
+        assertArrayEquals(other, Arrays.copyOfRange(packet, position + 2, packet.length));
+    }
+
+    @Test
+    @DisplayName("FU-A packets")
+    void fuA() {
+        // NRI 2, type 5
+        byte[] nal = nal(0x45, 250);
+        List<byte[]> packets = packetize(packetizer(100), nal);
+        // 249 bytes after the NAL header, 86 per fragment
+        assertEquals(3, packets.size());
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        restored.write(nal[0]);
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertTrue(packet.length <= 100);
+            assertEquals(0x40 | 28, packet[12] & 0xFF);
+            int expectedHeader = (i == 0 ? 0x80 : 0) | (i == packets.size() - 1 ? 0x40 : 0) | 5;
+            assertEquals(expectedHeader, packet[13] & 0xFF);
+            assertEquals(i == packets.size() - 1, isMarker(packet));
+            restored.write(packet, 14, packet.length - 14);
+        }
+        assertArrayEquals(nal, restored.toByteArray());
+    }
+
+    @Test
+    @DisplayName("Marker only on the last packet")
+    void markerOnLastPacket() {
+        byte[][] nalUnits = {withStartCode(nal(0x67, 10)), nal(0x65, 250), new byte[0], {0, 0, 0, 1}};
+        List<byte[]> packets = packetize(packetizer(100), nalUnits);
+        assertEquals(4, packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(i == packets.size() - 1, isMarker(packets.get(i)));
+        }
+    }
+
+    @Test
+    @DisplayName("Sequence number wrap")
+    void sequenceNumberWrap() {
+        H264RtpPacketizer packetizer = H264RtpPacketizer.builder().mtu(100).initialSequenceNumber(0xFFFE).build();
+        byte[] nal = nal(0x65, 300);
+        List<byte[]> packets = packetize(packetizer, nal);
+        assertEquals(4, packets.size());
+        int[] sequenceNumbers = new int[packets.size()];
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            sequenceNumbers[i] = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+        }
+        assertArrayEquals(new int[]{0xFFFE, 0xFFFF, 0, 1}, sequenceNumbers);
+
+        List<byte[]> accessUnits = depacketize(packets);
+        assertEquals(1, accessUnits.size());
+        assertArrayEquals(withStartCode(nal), accessUnits.get(0));
+    }
+
+    @Test
+    @DisplayName("NAL unit with a lost fragment is dropped")
+    void lostFragment() {
+        byte[] sps = nal(0x67, 10);
+        byte[] idr = nal(0x65, 250);
+        List<byte[]> packets = packetize(packetizer(100), sps, idr);
+        // Single NAL unit packet and 3 FU-A packets
+        assertEquals(4, packets.size());
+
+        assertArrayEquals(concat(withStartCode(sps), withStartCode(idr)), depacketize(packets).get(0));
+
+        packets.remove(2);
+        List<byte[]> accessUnits = depacketize(packets);
+        assertEquals(1, accessUnits.size());
+        assertArrayEquals(withStartCode(sps), accessUnits.get(0));
+    }
+
+    @Test
+    @DisplayName("Double release")
+    void doubleRelease() {
+        H264RtpPacketizer packetizer = packetizer(100);
+        List<RtpPacket> packets = new ArrayList<>();
+        packetizer.packetize(new byte[][]{nal(0x65, 20)}, 0, packets::add);
+        RtpPacket packet = packets.get(0);
+        packet.release();
+        assertThrows(IllegalStateException.class, packet::release);
+        // The pooled packet can be released again after it's reused
+        packets.clear();
+        packetizer.packetize(new byte[][]{nal(0x65, 20)}, 0, packets::add);
+        assertSame(packet, packets.get(0));
+        packet.release();
+    }
+
+    private static H264RtpPacketizer packetizer(int mtu) {
+        return H264RtpPacketizer.builder().mtu(mtu).ssrc(1234).initialSequenceNumber(0).build();
+    }
+
+    private static List<byte[]> packetize(H264RtpPacketizer packetizer, byte[]... nalUnits) {
+        List<byte[]> packets = new ArrayList<>();
+        packetizer.packetize(nalUnits, 3000, packet -> {
+            packets.add(Arrays.copyOf(packet.getBuffer(), packet.getLength()));
+            packet.release();
+        });
+        return packets;
+    }
+
+    private static List<byte[]> depacketize(List<byte[]> packets) {
+        H264RtpDepacketizer depacketizer = new H264RtpDepacketizer();
+        List<byte[]> accessUnits = new ArrayList<>();
+        for (byte[] packet : packets) {
+            depacketizer.depacketize(packet, 0, packet.length, accessUnits::add);
+        }
+        depacketizer.flush(accessUnits::add);
+        return accessUnits;
+    }
+
+    private static boolean isMarker(byte[] packet) {
+        return (packet[1] & 0x80) != 0;
+    }
+
+    private static byte[] nal(int header, int length) {
+        byte[] nal = new byte[length];
+        nal[0] = (byte) header;
+        for (int i = 1; i < length; i++) {
+            nal[i] = (byte) (i * 7 + 1);
+        }
+        return nal;
+    }
+
+    private static byte[] withStartCode(byte[] nal) {
+        return concat(new byte[]{0, 0, 0, 1}, nal);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+}